@@ -21,4 +21,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "ZKMagicWP"
 include(":zkmagicwp")
+include(":zkmagicwp-core")
  
\ No newline at end of file
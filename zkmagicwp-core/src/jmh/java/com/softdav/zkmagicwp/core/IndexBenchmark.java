@@ -0,0 +1,174 @@
+package com.softdav.zkmagicwp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Index arithmetic and frame geometry over a 100k image list
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IndexBenchmark {
+    private static final int SIZE=100_000;
+    private static final int SCREEN_WIDTH=1080;
+    private static final int SCREEN_HEIGHT=2400;
+
+    private String[] paths;
+    private PathStore pathStore;
+    private int[] moves;
+    private int[] widths;
+    private int[] heights;
+
+    @Setup
+    public void createData() {
+        Random random=new Random(42);
+        paths=new String[SIZE];
+        pathStore=new PathStore();
+        for (int i=0; i<SIZE; i++) {
+            // Nested camera folders, a few hundred images each
+            paths[i]="DCIM/Camera/" + (2015 + i/10_000) + "/" + String.format("%02d", i/300%12 + 1) + "/IMG_" + (20150101 + i) + "_" + i + ".jpg";
+            pathStore.add(paths[i]);
+        }
+        moves=new int[SIZE];
+        widths=new int[SIZE];
+        heights=new int[SIZE];
+        for (int i=0; i<SIZE; i++) {
+            // Mostly single steps, sometimes a merged burst of taps
+            moves[i]=random.nextInt(10)==0 ? random.nextInt(41) - 20 : 1;
+            // From tall portraits to wide panoramas
+            widths[i]=500 + random.nextInt(20_000);
+            heights[i]=500 + random.nextInt(8_000);
+        }
+    }
+
+    /**
+     * Walk the whole list one image at a time, wrapping at the end
+     */
+    @Benchmark
+    public int sequentialWalk() {
+        int index=0;
+        for (int i=0; i<SIZE; i++) index=ImageOrder.next(index, SIZE);
+        return index;
+    }
+
+    /**
+     * Fill a path store with the whole list
+     */
+    @Benchmark
+    public int pathStoreAdd() {
+        PathStore store=new PathStore();
+        for (String path : paths) store.add(path);
+        return store.size();
+    }
+
+    /**
+     * Fill the list and set that the path store replaces
+     */
+    @Benchmark
+    public int stringListAdd() {
+        List<String> list=new ArrayList<>();
+        Set<String> set=new HashSet<>();
+        for (String path : paths) {
+            if (set.add(path)) list.add(path);
+        }
+        return list.size();
+    }
+
+    /**
+     * Materialize every path of the store
+     */
+    @Benchmark
+    public long pathStoreGet() {
+        long length=0;
+        for (int i=0; i<SIZE; i++) length+=pathStore.get(i).length();
+        return length;
+    }
+
+    /**
+     * Look up every path of the store
+     */
+    @Benchmark
+    public long pathStoreContains() {
+        long found=0;
+        for (String path : paths) {
+            if (pathStore.contains(path)) found++;
+        }
+        return found;
+    }
+
+    /**
+     * Walk the whole list in shuffled order
+     */
+    @Benchmark
+    public long shuffledWalk() {
+        ShuffleOrder order=new ShuffleOrder(42L, SIZE);
+        long sum=0;
+        for (int position=0; position<SIZE; position++) sum+=order.imageAt(position);
+        return sum;
+    }
+
+    /**
+     * Step backwards through the shuffled order, mapping each image back to its position
+     */
+    @Benchmark
+    public long shuffledPositions() {
+        ShuffleOrder order=new ShuffleOrder(42L, SIZE);
+        long sum=0;
+        for (int image=0; image<SIZE; image++) sum+=order.positionOf(image);
+        return sum;
+    }
+
+    /**
+     * Resolve merged navigation requests
+     */
+    @Benchmark
+    public int navigationTargets() {
+        int index=1;
+        for (int move : moves) index=ImageOrder.target(index, move, -1, SIZE);
+        return index;
+    }
+
+    /**
+     * Lock screen region and sample size of every image
+     */
+    @Benchmark
+    public long lockScreenGeometry() {
+        long sum=0;
+        for (int i=0; i<SIZE; i++) {
+            FitGeometry geometry=FitGeometry.of(widths[i], heights[i], SCREEN_WIDTH, SCREEN_HEIGHT, 2, true);
+            int regionWidth=geometry.sourceRight() - geometry.sourceLeft();
+            sum+=regionWidth + FitGeometry.sampleSize(regionWidth, heights[i], SCREEN_WIDTH, SCREEN_HEIGHT);
+        }
+        return sum;
+    }
+
+    /**
+     * Wallpaper crop hints of every image
+     */
+    @Benchmark
+    public long wallpaperCropHints() {
+        long sum=0;
+        for (int i=0; i<SIZE; i++) {
+            int scaledWidth=FitGeometry.scaledWidth(widths[i], heights[i], SCREEN_WIDTH, SCREEN_HEIGHT);
+            int[] crop=FitGeometry.cropHint(scaledWidth, SCREEN_HEIGHT, SCREEN_WIDTH, 3, false);
+            if (crop!=null) sum+=crop[0];
+        }
+        return sum;
+    }
+
+}
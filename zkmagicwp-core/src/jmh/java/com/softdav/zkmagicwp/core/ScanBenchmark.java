@@ -0,0 +1,109 @@
+package com.softdav.zkmagicwp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Scan of a synthetic tree of 100k entries: 100 folders of 1000 files, one file in ten
+ * without an image extension, plus a hidden folder that must be skipped
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScanBenchmark {
+    private static final int DIRECTORIES=100;
+    private static final int FILES_PER_DIRECTORY=1000;
+    private static final String[] EXTENSIONS={"jpg", "JPEG", "png", "webp", "jpg", "jpg", "png", "jpg", "heic", "txt"};
+
+    private Path root;
+    private Set<String> extensions;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        root=Files.createTempDirectory("zkmagicwp-scan");
+        extensions=ScanFilter.parseExtensions("jpg,jpeg,png,webp");
+        names=new String[DIRECTORIES*FILES_PER_DIRECTORY];
+        for (int d=0; d<DIRECTORIES; d++) {
+            // Two levels, so the recursion is exercised
+            Path dir=Files.createDirectories(root.resolve("album" + d/10).resolve("day" + d));
+            for (int f=0; f<FILES_PER_DIRECTORY; f++) {
+                String name="IMG_" + f + "." + EXTENSIONS[f%EXTENSIONS.length];
+                Files.createFile(dir.resolve(name));
+                names[d*FILES_PER_DIRECTORY + f]=name;
+            }
+        }
+        Path hidden=Files.createDirectories(root.resolve(".thumbnails"));
+        for (int f=0; f<FILES_PER_DIRECTORY; f++) Files.createFile(hidden.resolve("thumb_" + f + ".jpg"));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        try (Stream<Path> paths=Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Full recursive scan until the completion callback
+     */
+    @Benchmark
+    public int scanRecursive() throws InterruptedException {
+        FolderScanner scanner=new FolderScanner();
+        AtomicInteger found=new AtomicInteger();
+        CountDownLatch done=new CountDownLatch(1);
+        scanner.scan(root, root, true, extensions, new FolderScanner.Listener() {
+            @Override
+            public void onImagesFound(List<String> relativePaths) {
+                found.addAndGet(relativePaths.size());
+            }
+
+            @Override
+            public void onScanComplete(Map<String, Long> directories) {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String message) {
+                throw new IllegalStateException(message);
+            }
+        });
+        done.await();
+        scanner.cancel();
+        return found.get();
+    }
+
+    /**
+     * Extension filter alone over the same names
+     */
+    @Benchmark
+    public int filterNames() {
+        int accepted=0;
+        for (String name : names) {
+            if (ScanFilter.hasExtension(name, extensions)) accepted++;
+        }
+        return accepted;
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.softdav.zkmagicwp.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Scheduler decisions over a synthetic day of ticks and screen events
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScheduleBenchmark {
+    private static final int EVENTS=100_000;
+    private static final byte TICK=0;
+    private static final byte SCREEN_OFF=1;
+    private static final byte SCREEN_ON=2;
+    private static final byte USER_PRESENT=3;
+
+    private byte[] events;
+
+    @Setup
+    public void createEvents() {
+        Random random=new Random(42);
+        events=new byte[EVENTS];
+        boolean screenOn=true;
+        for (int i=0; i<EVENTS; i++) {
+            int r=random.nextInt(20);
+            if (r==0) {
+                events[i]=screenOn ? SCREEN_OFF : SCREEN_ON;
+                screenOn=!screenOn;
+            } else if (r==1 && screenOn) {
+                events[i]=USER_PRESENT;
+            } else {
+                events[i]=TICK;
+            }
+        }
+    }
+
+    /**
+     * Count the changes and prepared frames of the screen aware schedule
+     */
+    @Benchmark
+    public int screenAware() {
+        return replay(new ChangeSchedule(true));
+    }
+
+    /**
+     * Count the changes and prepared frames of the free running schedule
+     */
+    @Benchmark
+    public int freeRunning() {
+        return replay(new ChangeSchedule(false));
+    }
+
+    private int replay(ChangeSchedule schedule) {
+        int changes=0;
+        int prepared=0;
+        boolean interactive=true;
+        for (byte event : events) {
+            switch (event) {
+                case TICK:
+                    if (schedule.onTick(interactive)) changes++;
+                    break;
+                case SCREEN_OFF:
+                    interactive=false;
+                    if (schedule.onScreenOff()) prepared++;
+                    break;
+                case SCREEN_ON:
+                    interactive=true;
+                    if (schedule.onScreenOn(true)) changes++;
+                    break;
+                case USER_PRESENT:
+                    if (schedule.onUserPresent()) changes++;
+                    break;
+            }
+        }
+        return changes*31 + prepared;
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.softdav.zkmagicwp.core;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Decisions of the periodic change scheduler. In screen aware mode the ticks falling while the
+ * screen is off are collapsed into one change, applied when the user can see it. Not thread safe,
+ * the service calls it from the main thread.
+ */
+public final class ChangeSchedule {
+    private final boolean screenAware;
+    private boolean missedChange=false;
+
+    /**
+     * Create a schedule
+     *
+     * @param screenAware Collapse the ticks missed while the screen is off
+     */
+    public ChangeSchedule(boolean screenAware) {
+        this.screenAware=screenAware;
+    }
+
+    /**
+     * @return True if the ticks are collapsed while the screen is off
+     */
+    public boolean isScreenAware() {
+        return screenAware;
+    }
+
+    /**
+     * Periodic tick
+     *
+     * @param interactive True if the screen is on
+     * @return True to change now and schedule the next tick, false if the change waits for the screen
+     */
+    public boolean onTick(boolean interactive) {
+        if (screenAware && !interactive) {
+            missedChange=true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Screen turned off
+     *
+     * @return True to prepare the next frame, so that the change on wake up only applies it
+     */
+    public boolean onScreenOff() {
+        return screenAware;
+    }
+
+    /**
+     * Screen turned on, showing the lock screen
+     *
+     * @param lockScreenTarget True if the lock screen image is changed
+     * @return True to apply the missed change and restart the schedule
+     */
+    public boolean onScreenOn(boolean lockScreenTarget) {
+        return lockScreenTarget && takeMissedChange();
+    }
+
+    /**
+     * User unlocked the device
+     *
+     * @return True to apply the missed change and restart the schedule
+     */
+    public boolean onUserPresent() {
+        return takeMissedChange();
+    }
+
+    /**
+     * Calculate the delay of the next tick
+     *
+     * @param intervalSeconds Configured interval
+     * @return Delay in milliseconds, at least one second
+     */
+    public static long intervalMillis(int intervalSeconds) {
+        return Math.max(1, intervalSeconds) * 1000L;
+    }
+
+    /**
+     * Calculate how late the alarm may be delivered, letting the system batch it with other wakeups
+     *
+     * @param intervalMillis Delay of the next tick
+     * @return Delivery window in milliseconds
+     */
+    public static long windowMillis(long intervalMillis) {
+        return intervalMillis / 4;
+    }
+
+    /**
+     * Calculate the delay of the first tick after a restart, continuing the schedule of the previous run
+     *
+     * @param lastChangeTime Wall clock time of the last change
+     * @param now Current wall clock time
+     * @param intervalMillis Delay between ticks
+     * @return Delay in milliseconds, zero if the tick is overdue, a full interval if the clock went back
+     */
+    public static long resumeDelayMillis(long lastChangeTime, long now, long intervalMillis) {
+        long elapsed=now - lastChangeTime;
+        if (elapsed<0) return intervalMillis;
+        return Math.max(0, intervalMillis - elapsed);
+    }
+
+    private boolean takeMissedChange() {
+        if (!screenAware || !missedChange) return false;
+        missedChange=false;
+        return true;
+    }
+
+}
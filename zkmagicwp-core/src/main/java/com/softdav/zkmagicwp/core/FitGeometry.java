@@ -0,0 +1,147 @@
+package com.softdav.zkmagicwp.core;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Fit and centering geometry of the frames. An image is scaled to the screen height, at least
+ * as wide as the screen, then shifted left by its excess width divided by the center mode:
+ * the lock screen frame is the screen, centered with mode 2, the wallpaper frame is as wide
+ * as the scaled image and shows everything right of the shift.
+ */
+public final class FitGeometry {
+    public final int sourceWidth;
+    public final int sourceHeight;
+    public final int screenWidth;
+    public final int screenHeight;
+    public final int scaledWidth;       // Image width once scaled to the screen height
+    public final int shift;             // Position of the scaled image in the frame, zero or negative
+    public final int frameWidth;
+
+    private FitGeometry(int sourceWidth, int sourceHeight, int screenWidth, int screenHeight, int centerMode, boolean screenFrame) {
+        this.sourceWidth=sourceWidth;
+        this.sourceHeight=sourceHeight;
+        this.screenWidth=screenWidth;
+        this.screenHeight=screenHeight;
+        this.scaledWidth=scaledWidth(sourceWidth, sourceHeight, screenWidth, screenHeight);
+        this.shift=(screenWidth - scaledWidth) / Math.max(1, centerMode);
+        this.frameWidth=screenFrame ? screenWidth : scaledWidth;
+    }
+
+    /**
+     * Compute the geometry of a frame
+     *
+     * @param sourceWidth Image width
+     * @param sourceHeight Image height
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @param centerMode Divisor of the excess width giving the shift, 2 to center the image
+     * @param screenFrame True for a frame of the screen size, false for a frame as wide as the scaled image
+     * @return Frame geometry
+     */
+    public static FitGeometry of(int sourceWidth, int sourceHeight, int screenWidth, int screenHeight, int centerMode, boolean screenFrame) {
+        return new FitGeometry(sourceWidth, sourceHeight, screenWidth, screenHeight, centerMode, screenFrame);
+    }
+
+    /**
+     * @return First column of the scaled image visible in the frame
+     */
+    public int visibleLeft() {
+        return -shift;
+    }
+
+    /**
+     * @return Column after the last one of the scaled image visible in the frame
+     */
+    public int visibleRight() {
+        return Math.min(scaledWidth, frameWidth - shift);
+    }
+
+    /**
+     * @return True if part of the image falls outside the frame
+     */
+    public boolean isCropped() {
+        return visibleLeft()>0 || visibleRight()<scaledWidth;
+    }
+
+    /**
+     * @return Horizontal scale from the image to the frame
+     */
+    public double scaleX() {
+        return (double) scaledWidth / sourceWidth;
+    }
+
+    /**
+     * @return First image column covering the visible part
+     */
+    public int sourceLeft() {
+        return (int) Math.floor(visibleLeft() / scaleX());
+    }
+
+    /**
+     * @return Image column after the last one covering the visible part
+     */
+    public int sourceRight() {
+        return Math.min(sourceWidth, (int) Math.ceil(visibleRight() / scaleX()));
+    }
+
+    /**
+     * Calculate the width of an image scaled to the screen height, never narrower than the screen
+     *
+     * @param sourceWidth Image width
+     * @param sourceHeight Image height
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @return Scaled width
+     */
+    public static int scaledWidth(int sourceWidth, int sourceHeight, int screenWidth, int screenHeight) {
+        double newWidth=((double) screenHeight / sourceHeight) * sourceWidth;
+        if (newWidth<screenWidth) newWidth=screenWidth;
+        return (int) newWidth;
+    }
+
+    /**
+     * Calculate the largest power of two subsampling that keeps the image at least as big as requested
+     *
+     * @param width Image width
+     * @param height Image height
+     * @param reqWidth Required width
+     * @param reqHeight Required height
+     * @return Sample size
+     */
+    public static int sampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize=1;
+        while ((width / (inSampleSize * 2))>=reqWidth && (height / (inSampleSize * 2))>=reqHeight) {
+            inSampleSize*=2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Divide rounding up, like the decoder does for the subsampled size
+     *
+     * @param value Dividend
+     * @param divisor Divisor
+     * @return Rounded up quotient
+     */
+    public static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * Compute the visible part of a scaled image: the lock screen shows the centered screen
+     * width, the wallpaper everything right of the shift given by the center mode
+     *
+     * @param width Scaled image width
+     * @param height Scaled image height
+     * @param screenWidth Screen width
+     * @param centerMode Divisor of the excess width giving the left edge, 2 to center
+     * @param lockScreen True for the lock screen, false for the wallpaper
+     * @return Left, top, right and bottom of the visible part, or null if the whole image is visible
+     */
+    public static int[] cropHint(int width, int height, int screenWidth, int centerMode, boolean lockScreen) {
+        if (width<=screenWidth || centerMode<=1 && !lockScreen) return null;
+        int left=(width - screenWidth) / centerMode;
+        return new int[] {left, 0, lockScreen ? left + screenWidth : width, height};
+    }
+
+}
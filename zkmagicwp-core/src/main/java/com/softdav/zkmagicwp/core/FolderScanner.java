@@ -0,0 +1,148 @@
+package com.softdav.zkmagicwp.core;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Folder scanner that walks directories in parallel with java.nio directory streams
+ * and emits the images found in small batches, so they can be used before the scan ends.
+ * The scanner threads exit once idle, a scanner kept for later rescans holds no thread.
+ */
+public final class FolderScanner {
+    private static final int BATCH_SIZE=256;
+    private static final int MAX_THREADS=4;
+    private static final long KEEP_ALIVE_SECONDS=1;     // Idle time before a scanner thread exits
+
+    /**
+     * Receives the scan results, called from the scanner threads
+     */
+    public interface Listener {
+        /**
+         * New images found
+         *
+         * @param relativePaths Image paths relative to the scan root
+         */
+        void onImagesFound(List<String> relativePaths);
+
+        /**
+         * Scan completed
+         *
+         * @param directories Modification time of each scanned directory, by path relative to the scan root
+         */
+        void onScanComplete(Map<String, Long> directories);
+
+        /**
+         * A directory cannot be read, the scan goes on with the others
+         *
+         * @param message Error description
+         */
+        void onError(String message);
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicBoolean cancelled=new AtomicBoolean(false);
+
+    /**
+     * Create a scanner
+     */
+    public FolderScanner() {
+        int threads=Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        executor=new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread=new Thread(r, "WallpaperScan");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start scanning a directory in background
+     *
+     * @param root Scan root, results are relative to it
+     * @param start Directory where the scan starts, the root or one of its subdirectories
+     * @param recursive Also scan subdirectories
+     * @param extensions Lower case image extensions
+     * @param listener Results listener
+     */
+    public void scan(Path root, Path start, boolean recursive, Set<String> extensions, Listener listener) {
+        Map<String, Long> directories=new ConcurrentHashMap<>();
+        AtomicInteger pending=new AtomicInteger(1);
+        submit(root, start, recursive, extensions, listener, directories, pending);
+    }
+
+    /**
+     * Stop all the running scans, no further results are emitted
+     */
+    public void cancel() {
+        cancelled.set(true);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queue the scan of a directory
+     */
+    private void submit(Path root, Path dir, boolean recursive, Set<String> extensions, Listener listener,
+                        Map<String, Long> directories, AtomicInteger pending) {
+        try {
+            executor.execute(() -> {
+                try {
+                    scanDirectory(root, dir, recursive, extensions, listener, directories, pending);
+                } finally {
+                    if (pending.decrementAndGet()==0 && !cancelled.get()) listener.onScanComplete(directories);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Scanner cancelled
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Read one directory, emitting the images and queuing the subdirectories
+     */
+    private void scanDirectory(Path root, Path dir, boolean recursive, Set<String> extensions, Listener listener,
+                               Map<String, Long> directories, AtomicInteger pending) {
+        List<String> batch=new ArrayList<>();
+        try {
+            directories.put(root.relativize(dir).toString(), Files.getLastModifiedTime(dir).toMillis());
+            try (DirectoryStream<Path> stream=Files.newDirectoryStream(dir)) {
+                for (Path path : stream) {
+                    if (cancelled.get()) return;
+                    String name=path.getFileName().toString();
+                    if (ScanFilter.hasExtension(name, extensions)) {
+                        // Image names are accepted without a stat call
+                        batch.add(root.relativize(path).toString());
+                        if (batch.size()>=BATCH_SIZE) {
+                            listener.onImagesFound(batch);
+                            batch=new ArrayList<>();
+                        }
+                    } else if (recursive && ScanFilter.isScannedDirectory(name) && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        pending.incrementAndGet();
+                        submit(root, path, true, extensions, listener, directories, pending);
+                    }
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            listener.onError("Error reading files:" + e.getMessage());
+        }
+        if (!batch.isEmpty() && !cancelled.get()) listener.onImagesFound(batch);
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.softdav.zkmagicwp.core;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Position arithmetic of the image list. Positions are 1-based like the service index,
+ * 0 means that no image has been shown yet.
+ */
+public final class ImageOrder {
+
+    private ImageOrder() {
+    }
+
+    /**
+     * Calculate the image index following the given one, wrapping at both ends
+     *
+     * @param fromIndex Starting index
+     * @param size Number of images
+     * @return Next image index, 1 if there are no images
+     */
+    public static int next(int fromIndex, int size) {
+        int result=fromIndex + 1;
+        if (result>size) {
+            result=1;
+        } else if (result<=0) {
+            result=1;
+            if (size>0) result=size;
+        }
+        return result;
+    }
+
+    /**
+     * Calculate the image reached by a navigation request, wrapping around the list
+     * however long the merged move is
+     *
+     * @param currentIndex Image currently shown, 0 if none
+     * @param move Relative move, added to the seek target if there is one
+     * @param seek Absolute target starting from 0, or -1 for a relative move
+     * @param size Number of images, 0 if the list is not loaded yet
+     * @return Target image index, not wrapped if the list is empty
+     */
+    public static int target(int currentIndex, int move, int seek, int size) {
+        long base=seek>=0 ? seek : currentIndex - 1L;
+        if (size<=0) return (int) (base + move + 1);
+        return (int) Math.floorMod(base + move, (long) size) + 1;
+    }
+
+}
@@ -0,0 +1,281 @@
+package com.softdav.zkmagicwp.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Compact ordered set of relative image paths. Each folder is stored once in a directory
+ * table and the file names are packed as UTF-8 bytes in a single array, so an entry costs
+ * a few ints plus its name bytes instead of a String with its own copy of the folder path.
+ * Paths are materialized only when requested; lookups go through an open addressing table
+ * of entry numbers, rebuilt after removals since these shift the following entries.
+ * Not thread safe.
+ */
+public final class PathStore {
+    private static final char SEPARATOR='/';
+
+    private final List<String> directories=new ArrayList<>();           // Interned folders, relative
+    private final Map<String, Integer> directoryIds=new HashMap<>();
+    private int[] entryDirectories=new int[16];
+    private int[] entryStarts=new int[16];
+    private int[] entryLengths=new int[16];
+    private int size=0;
+    private byte[] bytes=new byte[1024];
+    private int byteCount=0;                // Bytes appended, including those of removed entries
+    private int liveBytes=0;                // Bytes of the current entries
+    private int[] table=new int[32];        // Entry number + 1 by hash, 0 for free slots
+    private boolean tableValid=true;
+
+    /**
+     * @return Number of paths
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return True if there are no paths
+     */
+    public boolean isEmpty() {
+        return size==0;
+    }
+
+    /**
+     * Get a path
+     *
+     * @param index Entry position
+     * @return Path relative to the images folder
+     */
+    public String get(int index) {
+        checkIndex(index);
+        String name=new String(bytes, entryStarts[index], entryLengths[index], StandardCharsets.UTF_8);
+        String directory=directories.get(entryDirectories[index]);
+        return directory.isEmpty() ? name : directory + SEPARATOR + name;
+    }
+
+    /**
+     * Append a path if not already present
+     *
+     * @param relativePath Path relative to the images folder
+     * @return True if added
+     */
+    public boolean add(String relativePath) {
+        int split=relativePath.lastIndexOf(SEPARATOR);
+        String directory=split<0 ? "" : relativePath.substring(0, split);
+        byte[] name=relativePath.substring(split + 1).getBytes(StandardCharsets.UTF_8);
+        Integer directoryId=directoryIds.get(directory);
+        if (directoryId!=null && find(directoryId, name)>=0) return false;
+        if (directoryId==null) {
+            directoryId=directories.size();
+            directories.add(directory);
+            directoryIds.put(directory, directoryId);
+        }
+        if (size==entryStarts.length) {
+            int capacity=size + (size >> 1);
+            entryDirectories=Arrays.copyOf(entryDirectories, capacity);
+            entryStarts=Arrays.copyOf(entryStarts, capacity);
+            entryLengths=Arrays.copyOf(entryLengths, capacity);
+        }
+        if (byteCount + name.length>bytes.length) {
+            bytes=Arrays.copyOf(bytes, Math.max(byteCount + name.length, bytes.length + (bytes.length >> 1)));
+        }
+        System.arraycopy(name, 0, bytes, byteCount, name.length);
+        entryDirectories[size]=directoryId;
+        entryStarts[size]=byteCount;
+        entryLengths[size]=name.length;
+        byteCount+=name.length;
+        liveBytes+=name.length;
+        size++;
+        if (tableValid) {
+            if (size*2>table.length) {
+                tableValid=false;
+            } else {
+                insert(size - 1);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param relativePath Path relative to the images folder
+     * @return True if the path is present
+     */
+    public boolean contains(String relativePath) {
+        return indexOf(relativePath)>=0;
+    }
+
+    /**
+     * Find a path
+     *
+     * @param relativePath Path relative to the images folder
+     * @return Entry position or -1 if not present
+     */
+    public int indexOf(String relativePath) {
+        int split=relativePath.lastIndexOf(SEPARATOR);
+        Integer directoryId=directoryIds.get(split<0 ? "" : relativePath.substring(0, split));
+        if (directoryId==null) return -1;
+        return find(directoryId, relativePath.substring(split + 1).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Remove a path, the following entries move back by one
+     *
+     * @param index Entry position
+     */
+    public void remove(int index) {
+        checkIndex(index);
+        liveBytes-=entryLengths[index];
+        int moved=size - index - 1;
+        System.arraycopy(entryDirectories, index + 1, entryDirectories, index, moved);
+        System.arraycopy(entryStarts, index + 1, entryStarts, index, moved);
+        System.arraycopy(entryLengths, index + 1, entryLengths, index, moved);
+        size--;
+        removed();
+    }
+
+    /**
+     * Remove a path if present
+     *
+     * @param relativePath Path relative to the images folder
+     * @return True if removed
+     */
+    public boolean remove(String relativePath) {
+        int index=indexOf(relativePath);
+        if (index<0) return false;
+        remove(index);
+        return true;
+    }
+
+    /**
+     * Remove the paths of a folder and of all its subfolders
+     *
+     * @param relativeDir Folder relative to the images folder, empty for all the paths
+     * @return Number of removed paths
+     */
+    public int removeDirectory(String relativeDir) {
+        String prefix=relativeDir.isEmpty() ? "" : relativeDir + SEPARATOR;
+        boolean[] matches=new boolean[directories.size()];
+        boolean any=false;
+        for (int i=0; i<matches.length; i++) {
+            String directory=directories.get(i);
+            matches[i]=directory.equals(relativeDir) || directory.startsWith(prefix);
+            any|=matches[i];
+        }
+        if (!any) return 0;
+        int kept=0;
+        for (int i=0; i<size; i++) {
+            if (matches[entryDirectories[i]]) {
+                liveBytes-=entryLengths[i];
+                continue;
+            }
+            entryDirectories[kept]=entryDirectories[i];
+            entryStarts[kept]=entryStarts[i];
+            entryLengths[kept]=entryLengths[i];
+            kept++;
+        }
+        int count=size - kept;
+        size=kept;
+        if (count>0) removed();
+        return count;
+    }
+
+    /**
+     * Remove all the paths and folders
+     */
+    public void clear() {
+        directories.clear();
+        directoryIds.clear();
+        size=0;
+        byteCount=0;
+        liveBytes=0;
+        Arrays.fill(table, 0);
+        tableValid=true;
+    }
+
+    /**
+     * Invalidate the lookup table and reclaim the name bytes once mostly unused
+     */
+    private void removed() {
+        tableValid=false;
+        if (byteCount>4096 && liveBytes<byteCount/2) {
+            byte[] packed=new byte[Math.max(1024, liveBytes + (liveBytes >> 2))];
+            int offset=0;
+            for (int i=0; i<size; i++) {
+                System.arraycopy(bytes, entryStarts[i], packed, offset, entryLengths[i]);
+                entryStarts[i]=offset;
+                offset+=entryLengths[i];
+            }
+            bytes=packed;
+            byteCount=offset;
+        }
+    }
+
+    /**
+     * Look up a name in a folder
+     *
+     * @return Entry position or -1
+     */
+    private int find(int directoryId, byte[] name) {
+        if (!tableValid) rebuildTable();
+        int mask=table.length - 1;
+        for (int slot=hash(directoryId, name, 0, name.length) & mask; table[slot]!=0; slot=(slot + 1) & mask) {
+            int index=table[slot] - 1;
+            if (entryDirectories[index]==directoryId && nameEquals(index, name)) return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Add an entry to the lookup table, which must have a free slot
+     */
+    private void insert(int index) {
+        int mask=table.length - 1;
+        int slot=hash(entryDirectories[index], bytes, entryStarts[index], entryLengths[index]) & mask;
+        while (table[slot]!=0) slot=(slot + 1) & mask;
+        table[slot]=index + 1;
+    }
+
+    /**
+     * Recreate the lookup table at most half full
+     */
+    private void rebuildTable() {
+        int capacity=32;
+        while (capacity<size*2) capacity<<=1;
+        if (table.length!=capacity) {
+            table=new int[capacity];
+        } else {
+            Arrays.fill(table, 0);
+        }
+        for (int i=0; i<size; i++) insert(i);
+        tableValid=true;
+    }
+
+    /**
+     * Compare the name of an entry, without the range Arrays.equals() missing before Android 13
+     */
+    private boolean nameEquals(int index, byte[] name) {
+        if (entryLengths[index]!=name.length) return false;
+        int start=entryStarts[index];
+        for (int i=0; i<name.length; i++) {
+            if (bytes[start + i]!=name[i]) return false;
+        }
+        return true;
+    }
+
+    private static int hash(int directoryId, byte[] data, int start, int length) {
+        int hash=directoryId*0x9E3779B1;
+        for (int i=start; i<start + length; i++) hash=31*hash + data[i];
+        return hash ^ (hash >>> 16);
+    }
+
+    private void checkIndex(int index) {
+        if (index<0 || index>=size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+}
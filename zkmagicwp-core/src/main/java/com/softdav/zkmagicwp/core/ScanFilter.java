@@ -0,0 +1,57 @@
+package com.softdav.zkmagicwp.core;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Rules deciding which files and folders a scan accepts
+ */
+public final class ScanFilter {
+
+    private ScanFilter() {
+    }
+
+    /**
+     * Parse a comma separated list of file extensions
+     *
+     * @param extensions Extensions, like "jpg,jpeg,png"
+     * @return Lower case extensions without dots
+     */
+    public static Set<String> parseExtensions(String extensions) {
+        Set<String> result=new HashSet<>();
+        for (String extension : extensions.split(",")) {
+            extension=extension.trim().toLowerCase(Locale.ROOT);
+            if (extension.startsWith(".")) extension=extension.substring(1);
+            if (!extension.isEmpty()) result.add(extension);
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Check if a file name has one of the given extensions, ignoring case
+     *
+     * @param name File name
+     * @param extensions Lower case extensions
+     * @return True if the extension matches
+     */
+    public static boolean hasExtension(String name, Set<String> extensions) {
+        int n=name.lastIndexOf('.');
+        if (n<0 || n==name.length()-1) return false;
+        return extensions.contains(name.substring(n+1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Check if a subfolder is scanned in recursive mode, hidden folders are skipped
+     *
+     * @param name Folder name
+     * @return True if the folder is scanned
+     */
+    public static boolean isScannedDirectory(String name) {
+        return !name.startsWith(".");
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.softdav.zkmagicwp.core;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Random order of the image list without repeats, as a seeded permutation of the indexes
+ * computed on demand: a balanced Feistel network over the smallest power of four covering
+ * the list, walking the cycle until the result falls inside it. Nothing is stored per image,
+ * so the order of any list size is rebuilt from the seed alone and both directions cost
+ * the same few rounds.
+ */
+public final class ShuffleOrder {
+    private static final int ROUNDS=4;
+
+    private final long seed;
+    private final int size;
+    private final int halfBits;
+    private final int halfMask;
+    private final int[] keys=new int[ROUNDS];
+
+    /**
+     * Create the order of a list
+     *
+     * @param seed Order seed, the same seed and size always give the same order
+     * @param size Number of images
+     */
+    public ShuffleOrder(long seed, int size) {
+        this.seed=seed;
+        this.size=Math.max(0, size);
+        int bits=Math.max(2, 32 - Integer.numberOfLeadingZeros(Math.max(1, this.size - 1)));
+        halfBits=(bits + 1)/2;
+        halfMask=(1 << halfBits) - 1;
+        long state=seed;
+        for (int i=0; i<ROUNDS; i++) {
+            state+=0x9E3779B97F4A7C15L;
+            keys[i]=(int) (mix64(state) >>> 32);
+        }
+    }
+
+    /**
+     * @return Seed of the order
+     */
+    public long seed() {
+        return seed;
+    }
+
+    /**
+     * @return Number of images
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Image shown at a position of the order
+     *
+     * @param position Position in the order, from 0 to size-1
+     * @return Image index, from 0 to size-1
+     */
+    public int imageAt(int position) {
+        if (size<=1) return position;
+        int value=position;
+        do {
+            value=encrypt(value);
+        } while (value>=size);
+        return value;
+    }
+
+    /**
+     * Position of an image in the order, inverse of imageAt()
+     *
+     * @param image Image index, from 0 to size-1
+     * @return Position in the order, from 0 to size-1
+     */
+    public int positionOf(int image) {
+        if (size<=1) return image;
+        int value=image;
+        do {
+            value=decrypt(value);
+        } while (value>=size);
+        return value;
+    }
+
+    /**
+     * Feistel rounds: (left, right) becomes (right, left ^ f(right))
+     */
+    private int encrypt(int value) {
+        int left=value >>> halfBits;
+        int right=value & halfMask;
+        for (int i=0; i<ROUNDS; i++) {
+            int next=left ^ round(right, keys[i]);
+            left=right;
+            right=next;
+        }
+        return (left << halfBits) | right;
+    }
+
+    /**
+     * Rounds of encrypt() undone in reverse order
+     */
+    private int decrypt(int value) {
+        int left=value >>> halfBits;
+        int right=value & halfMask;
+        for (int i=ROUNDS - 1; i>=0; i--) {
+            int previous=right ^ round(left, keys[i]);
+            right=left;
+            left=previous;
+        }
+        return (left << halfBits) | right;
+    }
+
+    /**
+     * Round function, any mix of the half and the key keeps the network invertible
+     */
+    private int round(int half, int key) {
+        int x=(half ^ key) * 0x9E3779B1;
+        x^=x >>> 15;
+        x*=0x85EBCA6B;
+        x^=x >>> 13;
+        return x & halfMask;
+    }
+
+    /**
+     * SplitMix64 finalizer deriving the round keys from the seed
+     */
+    private static long mix64(long z) {
+        z=(z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z=(z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
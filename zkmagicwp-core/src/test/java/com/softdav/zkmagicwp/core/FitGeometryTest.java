@@ -0,0 +1,53 @@
+package com.softdav.zkmagicwp.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fit and centering geometry of the frames on a 1080x2400 screen
+ */
+public class FitGeometryTest {
+    @Test
+    public void panorama_lockScreenDecodesOnlyTheCenter() {
+        FitGeometry geometry=FitGeometry.of(20000, 2000, 1080, 2400, 2, true);
+        assertEquals(24000, geometry.scaledWidth);
+        assertEquals(-11460, geometry.shift);
+        assertTrue(geometry.isCropped());
+        assertEquals(11460, geometry.visibleLeft());
+        assertEquals(12540, geometry.visibleRight());
+        assertEquals(9550, geometry.sourceLeft());
+        assertEquals(10450, geometry.sourceRight());
+    }
+
+    @Test
+    public void wallpaper_keepsEverythingRightOfTheShift() {
+        FitGeometry geometry=FitGeometry.of(4000, 3000, 1080, 2400, 2, false);
+        assertEquals(3200, geometry.scaledWidth);
+        assertEquals(1060, geometry.visibleLeft());
+        assertEquals(3200, geometry.visibleRight());
+        assertFalse(FitGeometry.of(1000, 3000, 1080, 2400, 2, false).isCropped());
+    }
+
+    @Test
+    public void tallImage_isSqueezedToTheScreen() {
+        FitGeometry geometry=FitGeometry.of(1000, 20000, 1080, 2400, 2, true);
+        assertEquals(1080, geometry.scaledWidth);
+        assertFalse(geometry.isCropped());
+    }
+
+    @Test
+    public void cropHint_matchesTheComposition() {
+        assertArrayEquals(new int[] {1060, 0, 2140, 2400}, FitGeometry.cropHint(3200, 2400, 1080, 2, true));
+        assertArrayEquals(new int[] {706, 0, 3200, 2400}, FitGeometry.cropHint(3200, 2400, 1080, 3, false));
+        assertNull(FitGeometry.cropHint(3200, 2400, 1080, 1, false));
+        assertNull(FitGeometry.cropHint(1080, 2400, 1080, 2, true));
+    }
+
+    @Test
+    public void sampleSize_staysAboveTheRequest() {
+        assertEquals(1, FitGeometry.sampleSize(4000, 3000, 3200, 2400));
+        assertEquals(4, FitGeometry.sampleSize(12000, 9000, 3000, 2250));
+        assertEquals(3, FitGeometry.ceilDiv(5, 2));
+    }
+}
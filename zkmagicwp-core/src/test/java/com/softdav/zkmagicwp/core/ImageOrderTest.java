@@ -0,0 +1,42 @@
+package com.softdav.zkmagicwp.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Index arithmetic of the image list
+ */
+public class ImageOrderTest {
+    @Test
+    public void next_wrapsAtBothEnds() {
+        assertEquals(1, ImageOrder.next(0, 5));
+        assertEquals(5, ImageOrder.next(4, 5));
+        assertEquals(1, ImageOrder.next(5, 5));
+        assertEquals(5, ImageOrder.next(-1, 5));
+        assertEquals(1, ImageOrder.next(0, 0));
+    }
+
+    @Test
+    public void target_mergesMovesAndWraps() {
+        assertEquals(1, ImageOrder.target(0, 1, -1, 5));
+        assertEquals(4, ImageOrder.target(3, 1, -1, 5));
+        assertEquals(2, ImageOrder.target(3, -1, -1, 5));
+        assertEquals(5, ImageOrder.target(1, -1, -1, 5));
+        assertEquals(3, ImageOrder.target(1, 12, -1, 5));
+        assertEquals(4, ImageOrder.target(1, -12, -1, 5));
+    }
+
+    @Test
+    public void target_seekThenMove() {
+        assertEquals(3, ImageOrder.target(1, 0, 2, 5));
+        assertEquals(5, ImageOrder.target(1, 2, 2, 5));
+        assertEquals(1, ImageOrder.target(1, 3, 2, 5));
+    }
+
+    @Test
+    public void target_notWrappedBeforeLoad() {
+        assertEquals(1, ImageOrder.target(0, 1, -1, 0));
+        assertEquals(3, ImageOrder.target(0, 0, 2, 0));
+    }
+}
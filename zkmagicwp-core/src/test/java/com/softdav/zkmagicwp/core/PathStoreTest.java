@@ -0,0 +1,58 @@
+package com.softdav.zkmagicwp.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Packed relative path list
+ */
+public class PathStoreTest {
+    @Test
+    public void add_keepsOrderAndRejectsDuplicates() {
+        PathStore store=new PathStore();
+        assertTrue(store.add("a.jpg"));
+        assertTrue(store.add("trip/2024/b.jpg"));
+        assertTrue(store.add("trip/2024/citt\u00e0.png"));
+        assertFalse(store.add("trip/2024/b.jpg"));
+        assertEquals(3, store.size());
+        assertEquals("a.jpg", store.get(0));
+        assertEquals("trip/2024/b.jpg", store.get(1));
+        assertEquals("trip/2024/citt\u00e0.png", store.get(2));
+        assertEquals(2, store.indexOf("trip/2024/citt\u00e0.png"));
+        assertFalse(store.contains("trip/b.jpg"));
+    }
+
+    @Test
+    public void remove_shiftsFollowingEntries() {
+        PathStore store=new PathStore();
+        for (int i=0; i<10_000; i++) store.add("dir" + (i%7) + "/image" + i + ".jpg");
+        store.remove(0);
+        assertTrue(store.remove("dir3/image10.jpg"));
+        assertEquals(9_998, store.size());
+        assertEquals("dir1/image1.jpg", store.get(0));
+        assertEquals(-1, store.indexOf("dir0/image0.jpg"));
+        assertEquals(9, store.indexOf("dir4/image11.jpg"));
+        // Compaction after removing most of the names
+        for (int i=0; i<9_000; i++) store.remove(store.size() - 1);
+        assertEquals(998, store.size());
+        assertEquals("dir2/image9.jpg", store.get(8));
+        assertTrue(store.add("dir0/image0.jpg"));
+        assertEquals(998, store.indexOf("dir0/image0.jpg"));
+    }
+
+    @Test
+    public void removeDirectory_dropsSubfolders() {
+        PathStore store=new PathStore();
+        store.add("a/x.jpg");
+        store.add("a/b/y.jpg");
+        store.add("ab/z.jpg");
+        store.add("w.jpg");
+        assertEquals(2, store.removeDirectory("a"));
+        assertEquals(2, store.size());
+        assertEquals("ab/z.jpg", store.get(0));
+        assertTrue(store.contains("w.jpg"));
+        assertEquals(2, store.removeDirectory(""));
+        assertTrue(store.isEmpty());
+    }
+}
@@ -0,0 +1,38 @@
+package com.softdav.zkmagicwp.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Seeded permutation of the image list
+ */
+public class ShuffleOrderTest {
+    @Test
+    public void imageAt_isPermutationAndPositionOfInvertsIt() {
+        for (int size : new int[] {1, 2, 3, 5, 16, 17, 1000, 65_537}) {
+            ShuffleOrder order=new ShuffleOrder(1234L, size);
+            boolean[] seen=new boolean[size];
+            for (int position=0; position<size; position++) {
+                int image=order.imageAt(position);
+                assertTrue(image>=0 && image<size);
+                assertFalse(seen[image]);
+                seen[image]=true;
+                assertEquals(position, order.positionOf(image));
+            }
+        }
+    }
+
+    @Test
+    public void sameSeedGivesSameOrder() {
+        ShuffleOrder first=new ShuffleOrder(99L, 5000);
+        ShuffleOrder second=new ShuffleOrder(99L, 5000);
+        ShuffleOrder other=new ShuffleOrder(100L, 5000);
+        int differences=0;
+        for (int position=0; position<5000; position++) {
+            assertEquals(first.imageAt(position), second.imageAt(position));
+            if (first.imageAt(position)!=other.imageAt(position)) differences++;
+        }
+        assertTrue(differences>4000);
+    }
+}
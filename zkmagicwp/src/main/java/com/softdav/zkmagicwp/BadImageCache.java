@@ -0,0 +1,124 @@
+package com.softdav.zkmagicwp;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Persisted list of the images that failed to decode, with the modification time and size
+ * they had at the failure. Such an image is skipped by the rotation until the file changes,
+ * for example once a partial sync completes, and is then decoded again.
+ * Thread safe, failures are recorded from the render and decode threads.
+ */
+final class BadImageCache {
+    private static final int FILE_VERSION=1;
+    private static final int MAX_ENTRIES=10000;     // Oldest failures are forgotten first
+
+    private final File file;
+    private final LinkedHashMap<String, long[]> entries=new LinkedHashMap<>();  // Path to modification time and size
+    private boolean dirty=false;
+
+    /**
+     * Open the list persisted in the given file
+     *
+     * @param file List file
+     */
+    BadImageCache(@NonNull File file) {
+        this.file=file;
+        if (!file.exists()) return;
+        try (DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt()!=FILE_VERSION) return;
+            int count=in.readInt();
+            for (int i=0; i<count; i++) {
+                String path=in.readUTF();
+                entries.put(path, new long[] {in.readLong(), in.readLong()});
+            }
+        } catch (IOException e) {
+            Log.e("Error", "Error reading bad image list: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    /**
+     * Record an image that failed to decode
+     *
+     * @param path Image file path or content uri
+     * @param lastModified Image modification time
+     * @param length Image size
+     */
+    synchronized void add(@NonNull String path, long lastModified, long length) {
+        entries.remove(path);
+        entries.put(path, new long[] {lastModified, length});
+        if (entries.size()>MAX_ENTRIES) {
+            Iterator<String> iterator=entries.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        dirty=true;
+    }
+
+    /**
+     * Check if an image is known to fail. An image that changed since its failure is
+     * forgotten, so that it is decoded again.
+     *
+     * @param path Image file path or content uri
+     * @param lastModified Current image modification time
+     * @param length Current image size
+     * @return True if the image failed with the same modification time and size
+     */
+    synchronized boolean contains(@NonNull String path, long lastModified, long length) {
+        long[] entry=entries.get(path);
+        if (entry==null) return false;
+        if (entry[0]==lastModified && entry[1]==length) return true;
+        entries.remove(path);
+        dirty=true;
+        return false;
+    }
+
+    /**
+     * @return Number of recorded images
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Write the list to disk if it changed since the last save
+     */
+    synchronized void save() {
+        if (!dirty) return;
+        File tmpFile=new File(file.getPath() + ".tmp");
+        try (DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+        } catch (IOException e) {
+            Log.e("Error", "Error writing bad image list: " + e.getMessage());
+            return;
+        }
+        if (tmpFile.renameTo(file)) {
+            dirty=false;
+        } else {
+            Log.e("Error", "Error writing bad image list: rename failed");
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+package com.softdav.zkmagicwp;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Pool of mutable bitmaps bucketed by allocation size, reused as decode targets
+ * (BitmapFactory.Options.inBitmap) and as scale and compose targets between changes.
+ * A bitmap can be shared by several owners, each giving it back with put(): it is reused
+ * only once the last one did.
+ */
+final class BitmapPool {
+    private static final int MAX_SIZE_RATIO=2;  // Largest accepted waste between requested and reused size
+
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets=new TreeMap<>();
+    private final IdentityHashMap<Bitmap, Integer> shares=new IdentityHashMap<>();  // Owners beyond the first
+    private long maxBytes;
+    private long currentBytes=0;
+    private long hits=0;
+    private long misses=0;
+    private long allocatedBytes=0;      // Allocated by obtain() when no pooled bitmap fits
+
+    /**
+     * Create a new pool
+     *
+     * @param maxBytes Maximum bytes retained by the pool
+     */
+    BitmapPool(long maxBytes) {
+        this.maxBytes=maxBytes;
+    }
+
+    /**
+     * Take a pooled bitmap big enough for the requested size, reconfigured to it
+     *
+     * @param width Requested width
+     * @param height Requested height
+     * @param config Requested pixel format
+     * @return Pooled bitmap or null if none fits
+     */
+    @Nullable
+    synchronized Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        int required=byteCount(width, height, config);
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry=buckets.ceilingEntry(required);
+        while (entry!=null && entry.getKey()<=(long) required*MAX_SIZE_RATIO) {
+            Bitmap bitmap=entry.getValue().poll();
+            if (entry.getValue().isEmpty()) buckets.remove(entry.getKey());
+            if (bitmap!=null) {
+                currentBytes-=entry.getKey();
+                if (!bitmap.isRecycled()) {
+                    bitmap.reconfigure(width, height, config);
+                    hits++;
+                    return bitmap;
+                }
+            }
+            entry=buckets.ceilingEntry(required);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Take a pooled bitmap of the requested size or allocate a new one.
+     * The content of a reused bitmap is cleared.
+     *
+     * @param width Requested width
+     * @param height Requested height
+     * @param config Requested pixel format
+     * @return Mutable bitmap
+     */
+    @NonNull
+    Bitmap obtain(int width, int height, @NonNull Bitmap.Config config) {
+        Bitmap bitmap=get(width, height, config);
+        if (bitmap==null) {
+            bitmap=Bitmap.createBitmap(width, height, config);
+            synchronized (this) {
+                allocatedBytes+=bitmap.getAllocationByteCount();
+            }
+            return bitmap;
+        }
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * Add an owner to a bitmap, which must then be given back once more before it is reused.
+     * A shared bitmap must not be modified.
+     *
+     * @param bitmap Bitmap owned by the caller
+     */
+    synchronized void share(@NonNull Bitmap bitmap) {
+        Integer count=shares.get(bitmap);
+        shares.put(bitmap, count==null ? 1 : count + 1);
+    }
+
+    /**
+     * Give a bitmap back to the pool, it must not be used by the caller anymore.
+     * Bitmaps that cannot be reused are recycled, shared bitmaps only lose an owner.
+     *
+     * @param bitmap Bitmap to release
+     */
+    synchronized void put(@Nullable Bitmap bitmap) {
+        if (bitmap==null || bitmap.isRecycled()) return;
+        Integer count=shares.get(bitmap);
+        if (count!=null) {
+            if (count==1) shares.remove(bitmap);
+            else shares.put(bitmap, count - 1);
+            return;
+        }
+        int size=bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig()==Bitmap.Config.HARDWARE || size>maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        ArrayDeque<Bitmap> bucket=buckets.get(size);
+        if (bucket==null) {
+            bucket=new ArrayDeque<>();
+            buckets.put(size, bucket);
+        }
+        bucket.push(bitmap);
+        currentBytes+=size;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Change the maximum size of the pool, releasing bitmaps if necessary
+     *
+     * @param maxBytes Maximum bytes retained by the pool
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes=maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Release all pooled bitmaps
+     */
+    synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return Bytes currently retained by the pool
+     */
+    synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * @return Number of requests served with a pooled bitmap
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of requests no pooled bitmap could serve
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Bytes of the bitmaps allocated by obtain() because the pool had none to reuse
+     */
+    synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Release the largest bitmaps until the pool fits the given size
+     *
+     * @param size Maximum bytes to keep
+     */
+    private void trimToSize(long size) {
+        while (currentBytes>size && !buckets.isEmpty()) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> entry=buckets.lastEntry();
+            Bitmap bitmap=entry.getValue().pollLast();
+            if (entry.getValue().isEmpty()) buckets.remove(entry.getKey());
+            if (bitmap!=null) {
+                currentBytes-=entry.getKey();
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Calculate the bytes needed by a bitmap
+     *
+     * @param width Bitmap width
+     * @param height Bitmap height
+     * @param config Pixel format
+     * @return Size in bytes
+     */
+    static int byteCount(int width, int height, @NonNull Bitmap.Config config) {
+        int bytesPerPixel=4;
+        if (config==Bitmap.Config.RGB_565 || config==Bitmap.Config.ARGB_4444) bytesPerPixel=2;
+        else if (config==Bitmap.Config.ALPHA_8) bytesPerPixel=1;
+        else if (config==Bitmap.Config.RGBA_F16) bytesPerPixel=8;
+        return width*height*bytesPerPixel;
+    }
+
+}
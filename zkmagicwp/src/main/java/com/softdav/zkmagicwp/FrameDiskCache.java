@@ -0,0 +1,164 @@
+package com.softdav.zkmagicwp;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Size bounded LRU cache of rendered, screen fitted wallpapers stored as files,
+ * so that a cached frame can be streamed to the WallpaperManager without decoding it.
+ * Frames are stored as lossless WebP, keeping the pixels and alpha of the rendered bitmap.
+ */
+final class FrameDiskCache {
+    private static final String FORMAT="webp-lossless";   // Part of the keys, frames of an older format are never hit
+    private static final int COMPRESS_EFFORT=75;            // Lossless quality is the effort, 100 gives the smallest files
+
+    private final File cacheDir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, File> entries=new LinkedHashMap<>(64, 0.75f, true);   // Access ordered
+    private long currentBytes=0;
+
+    /**
+     * Open the cache, indexing the frames already present on disk by last use
+     *
+     * @param cacheDir Cache directory
+     * @param maxBytes Maximum size of the cache on disk
+     */
+    FrameDiskCache(@NonNull File cacheDir, long maxBytes) {
+        this.cacheDir=cacheDir;
+        this.maxBytes=maxBytes;
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            Log.e("Error", "Unable to create frame cache " + cacheDir);
+        }
+        File[] files=cacheDir.listFiles();
+        if (files!=null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    // Interrupted write
+                    if (!file.delete()) Log.e("Error", "Unable to delete " + file);
+                    continue;
+                }
+                entries.put(file.getName(), file);
+                currentBytes+=file.length();
+            }
+        }
+        trimToSize();
+    }
+
+    /**
+     * Build the key of a rendered frame.
+     * Any change of the source file or of the render parameters gives a different key.
+     *
+     * @param path Source image path
+     * @param lastModified Source image modification time
+     * @param length Source image size
+     * @param params Render parameters (target, screen size, center mode...)
+     * @return Cache key
+     */
+    @NonNull
+    static String buildKey(@NonNull String path, long lastModified, long length, Object... params) {
+        StringBuilder key=new StringBuilder(FORMAT).append('|').append(path).append('|').append(lastModified).append('|').append(length);
+        for (Object param : params) key.append('|').append(param);
+        try {
+            MessageDigest digest=MessageDigest.getInstance("SHA-1");
+            byte[] hash=digest.digest(key.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex=new StringBuilder(hash.length*2);
+            for (byte b : hash) hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.toString().hashCode()) + "_" + key.length();
+        }
+    }
+
+    /**
+     * Get a cached frame
+     *
+     * @param key Frame key
+     * @return Frame file or null if not cached
+     */
+    @Nullable
+    synchronized File get(@NonNull String key) {
+        File file=entries.get(key);
+        if (file==null) return null;
+        if (!file.exists()) {
+            entries.remove(key);
+            return null;
+        }
+        // Keep last use order across restarts
+        if (!file.setLastModified(System.currentTimeMillis())) Log.w("Warning", "Unable to touch " + file);
+        return file;
+    }
+
+    /**
+     * Store a rendered frame
+     *
+     * @param key Frame key
+     * @param bitmap Rendered frame
+     * @return Cached file or null if it cannot be written
+     */
+    @Nullable
+    synchronized File put(@NonNull String key, @NonNull Bitmap bitmap) {
+        File tmpFile=new File(cacheDir, key + ".tmp");
+        File file=new File(cacheDir, key);
+        if (entries.remove(key)!=null) currentBytes-=file.length();
+        try (OutputStream out=new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+            if (!bitmap.compress(Bitmap.CompressFormat.WEBP_LOSSLESS, COMPRESS_EFFORT, out)) throw new IOException("compress failed");
+        } catch (IOException e) {
+            Log.e("Error", "Frame cache write error: " + e.getMessage());
+            if (!tmpFile.delete()) Log.w("Warning", "Unable to delete " + tmpFile);
+            return null;
+        }
+        if (!tmpFile.renameTo(file)) {
+            if (!tmpFile.delete()) Log.w("Warning", "Unable to delete " + tmpFile);
+            return null;
+        }
+        entries.put(key, file);
+        currentBytes+=file.length();
+        trimToSize();
+        return file;
+    }
+
+    /**
+     * Delete all cached frames
+     */
+    synchronized void clear() {
+        for (File file : entries.values()) {
+            if (!file.delete()) Log.w("Warning", "Unable to delete " + file);
+        }
+        entries.clear();
+        currentBytes=0;
+    }
+
+    /**
+     * Delete the least recently used frames until the cache fits its maximum size
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, File>> iterator=entries.entrySet().iterator();
+        while (currentBytes>maxBytes && iterator.hasNext()) {
+            File file=iterator.next().getValue();
+            currentBytes-=file.length();
+            iterator.remove();
+            if (!file.delete()) Log.w("Warning", "Unable to delete " + file);
+        }
+    }
+
+}
@@ -0,0 +1,362 @@
+package com.softdav.zkmagicwp;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.softdav.zkmagicwp.core.FolderScanner;
+import com.softdav.zkmagicwp.core.PathStore;
+import com.softdav.zkmagicwp.core.ScanFilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Persistent index of the images contained in the selected folder and, in recursive mode,
+ * in its subfolders. The index is stored under the app files dir and reused at startup if
+ * the modification times of the scanned folders are unchanged, then kept current through
+ * FileObserver events. When a scan is needed the images are added as they are found.
+ * Not thread safe: all calls except stopWatching(), including the observer events and the
+ * scan results, must run on the executor given to load().
+ */
+final class ImageIndex implements ImageSource {
+    private static final int INDEX_VERSION=2;
+    private static final int IS_DIR=0x40000000;     // FileObserver flag for events about directories
+    private static final int OBSERVED_EVENTS=FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.CREATE
+            | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private final File indexFile;
+    private final PathStore names=new PathStore();          // Paths relative to the folder, in display order
+    private final Map<String, Long> directories=new HashMap<>();   // Scanned folders and their modification time
+    private final Map<String, FileObserver> observers=new HashMap<>();
+    private String folderPath="";
+    private boolean recursive=false;
+    private Set<String> extensions=new HashSet<>();
+    private Executor executor;
+    private Runnable onImagesAdded;
+    private FolderScanner scanner;
+    private int runningScans=0;
+    private boolean dirty=false;
+
+    /**
+     * Create an index persisted in the given file
+     *
+     * @param indexFile Index file
+     */
+    ImageIndex(@NonNull File indexFile) {
+        this.indexFile=indexFile;
+    }
+
+    /**
+     * Load the images of a folder, from the persisted index when it is still valid
+     * or with a background scan of the folder otherwise, and start following its changes
+     *
+     * @param folderPath Images folder
+     * @param recursive Include subfolders
+     * @param extensions Lower case image extensions
+     * @param executor Executor on which the index is updated
+     * @param onImagesAdded Called on the executor when scanned images are added to the index
+     */
+    void load(@NonNull String folderPath, boolean recursive, @NonNull Set<String> extensions,
+              @NonNull Executor executor, @NonNull Runnable onImagesAdded) {
+        stopWatching();
+        scanner=null;
+        runningScans=0;
+        this.folderPath=new File(folderPath).getAbsolutePath();
+        this.recursive=recursive;
+        this.extensions=extensions;
+        this.executor=executor;
+        this.onImagesAdded=onImagesAdded;
+        names.clear();
+        directories.clear();
+        if (readIndex()) {
+            startWatching();
+        } else {
+            scanDirectory("");
+        }
+    }
+
+    /**
+     * @return Number of images
+     */
+    @Override
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * @return True if there are no images
+     */
+    @Override
+    public boolean isEmpty() {
+        return names.isEmpty();
+    }
+
+    /**
+     * @return True while a folder scan is running
+     */
+    @Override
+    public boolean isScanning() {
+        return runningScans>0;
+    }
+
+    /**
+     * Get an image path
+     *
+     * @param index Image position
+     * @return Image absolute path
+     */
+    @Override
+    @NonNull
+    public String get(int index) {
+        return folderPath + File.separator + names.get(index);
+    }
+
+    @Override
+    public boolean exists(int index) {
+        return new File(get(index)).isFile();
+    }
+
+    @Override
+    public long lastModified(@NonNull String image) {
+        return new File(image).lastModified();
+    }
+
+    @Override
+    public long length(@NonNull String image) {
+        return new File(image).length();
+    }
+
+    /**
+     * Remove an image from the index
+     *
+     * @param index Image position
+     */
+    @Override
+    public void remove(int index) {
+        names.remove(index);
+        dirty=true;
+    }
+
+    /**
+     * Stop following folder changes and any running scan
+     */
+    @Override
+    public synchronized void stopWatching() {
+        for (FileObserver observer : observers.values()) observer.stopWatching();
+        observers.clear();
+        if (scanner!=null) scanner.cancel();
+    }
+
+    /**
+     * Write the index to disk if it changed since the last save.
+     * Nothing is written while a scan is running.
+     */
+    @Override
+    public void save() {
+        if (!dirty || isScanning()) return;
+        // Folder times changed by the applied events
+        for (Map.Entry<String, Long> entry : directories.entrySet()) {
+            entry.setValue(new File(folderPath, entry.getKey()).lastModified());
+        }
+        File tmpFile=new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(folderPath);
+            out.writeBoolean(recursive);
+            out.writeUTF(String.join(",", extensions));
+            out.writeInt(directories.size());
+            for (Map.Entry<String, Long> entry : directories.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(names.size());
+            for (int i=0; i<names.size(); i++) out.writeUTF(names.get(i));
+        } catch (IOException e) {
+            Log.e("Error", "Error writing image index: " + e.getMessage());
+            return;
+        }
+        if (tmpFile.renameTo(indexFile)) {
+            dirty=false;
+        } else {
+            Log.e("Error", "Error writing image index: rename failed");
+        }
+    }
+
+    /**
+     * Start a background scan of a folder, the results are added to the index as they arrive
+     *
+     * @param relativeDir Folder to scan, relative to the images folder
+     */
+    private void scanDirectory(String relativeDir) {
+        if (scanner==null) scanner=new FolderScanner();
+        FolderScanner current=scanner;
+        runningScans++;
+        File root=new File(folderPath);
+        scanner.scan(root.toPath(), new File(root, relativeDir).toPath(), recursive, extensions, new FolderScanner.Listener() {
+            @Override
+            public void onImagesFound(@NonNull List<String> relativePaths) {
+                executor.execute(() -> {
+                    if (current!=scanner) return;
+                    boolean added=false;
+                    for (String name : relativePaths) {
+                        if (names.add(name)) added=true;
+                    }
+                    if (added) {
+                        dirty=true;
+                        onImagesAdded.run();
+                    }
+                });
+            }
+
+            @Override
+            public void onScanComplete(@NonNull Map<String, Long> scanned) {
+                executor.execute(() -> {
+                    if (current!=scanner) return;
+                    directories.putAll(scanned);
+                    runningScans--;
+                    dirty=true;
+                    save();
+                    startWatching();
+                });
+            }
+
+            @Override
+            public void onError(@NonNull String message) {
+                Log.e("Error", message);
+            }
+        });
+    }
+
+    /**
+     * Start following the changes of the scanned folders
+     */
+    private synchronized void startWatching() {
+        for (String relativeDir : directories.keySet()) watchDirectory(relativeDir);
+    }
+
+    /**
+     * Start following the changes of a folder
+     *
+     * @param relativeDir Folder relative to the images folder
+     */
+    private synchronized void watchDirectory(String relativeDir) {
+        if (observers.containsKey(relativeDir)) return;
+        FileObserver observer=new FileObserver(new File(folderPath, relativeDir), OBSERVED_EVENTS) {
+            @Override
+            public void onEvent(int event, @Nullable String path) {
+                executor.execute(() -> onFolderEvent(relativeDir, event, path));
+            }
+        };
+        observers.put(relativeDir, observer);
+        observer.startWatching();
+    }
+
+    /**
+     * Apply a folder change event
+     *
+     * @param relativeDir Folder where the event happened
+     * @param event FileObserver event
+     * @param name Name of the changed file
+     */
+    private void onFolderEvent(String relativeDir, int event, @Nullable String name) {
+        if (!directories.containsKey(relativeDir)) return;
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF))!=0) {
+            // Folder removed
+            removeDirectory(relativeDir);
+            return;
+        }
+        if (name==null) return;
+        String relativePath=relativeDir.isEmpty() ? name : relativeDir + File.separator + name;
+        if ((event & IS_DIR)!=0) {
+            if (!recursive) return;
+            if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO))!=0 && !directories.containsKey(relativePath)) {
+                // New subfolder, scan it
+                scanDirectory(relativePath);
+            } else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM))!=0) {
+                removeDirectory(relativePath);
+            }
+            return;
+        }
+        if (!ScanFilter.hasExtension(name, extensions)) return;
+        if ((event & (FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO))!=0) {
+            if (names.add(relativePath)) dirty=true;
+        } else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM))!=0) {
+            if (names.remove(relativePath)) dirty=true;
+        }
+    }
+
+    /**
+     * Remove a folder and all its images from the index
+     *
+     * @param relativeDir Folder relative to the images folder
+     */
+    private void removeDirectory(String relativeDir) {
+        String prefix=relativeDir.isEmpty() ? "" : relativeDir + File.separator;
+        synchronized (this) {
+            Iterator<Map.Entry<String, FileObserver>> iterator=observers.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, FileObserver> entry=iterator.next();
+                if (entry.getKey().equals(relativeDir) || entry.getKey().startsWith(prefix)) {
+                    entry.getValue().stopWatching();
+                    iterator.remove();
+                }
+            }
+        }
+        directories.keySet().removeIf(dir -> dir.equals(relativeDir) || dir.startsWith(prefix));
+        names.removeDirectory(relativeDir);
+        dirty=true;
+    }
+
+    /**
+     * Read the persisted index if it belongs to the folder and settings
+     * and none of the scanned folders changed
+     *
+     * @return True if the index was loaded
+     */
+    private boolean readIndex() {
+        if (!indexFile.exists()) return false;
+        try (DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt()!=INDEX_VERSION) return false;
+            if (!in.readUTF().equals(folderPath)) return false;
+            if (in.readBoolean()!=recursive) return false;
+            if (!ScanFilter.parseExtensions(in.readUTF()).equals(extensions)) return false;
+            int count=in.readInt();
+            for (int i=0; i<count; i++) {
+                String relativeDir=in.readUTF();
+                long lastModified=in.readLong();
+                if (new File(folderPath, relativeDir).lastModified()!=lastModified) {
+                    directories.clear();
+                    return false;
+                }
+                directories.put(relativeDir, lastModified);
+            }
+            count=in.readInt();
+            for (int i=0; i<count; i++) names.add(in.readUTF());
+            return true;
+        } catch (IOException e) {
+            Log.e("Error", "Error reading image index: " + e.getMessage());
+            names.clear();
+            directories.clear();
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.softdav.zkmagicwp;
+
+import androidx.annotation.NonNull;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Ordered list of the images to display.
+ * Images are identified by a file path or a content uri, built only when requested.
+ * Implementations are not thread safe and are used from the render thread only.
+ */
+interface ImageSource {
+
+    /**
+     * @return Number of images
+     */
+    int size();
+
+    /**
+     * @return True if there are no images
+     */
+    boolean isEmpty();
+
+    /**
+     * @return True while the images are still being loaded
+     */
+    boolean isScanning();
+
+    /**
+     * Get an image
+     *
+     * @param index Image position
+     * @return Image file path or content uri
+     */
+    @NonNull
+    String get(int index);
+
+    /**
+     * Check if an image still exists, without opening it
+     *
+     * @param index Image position
+     * @return False if the image is known to be gone
+     */
+    boolean exists(int index);
+
+    /**
+     * Get the modification time of an image, used to validate cached renders
+     *
+     * @param image Image file path or content uri
+     * @return Modification time in milliseconds or 0 if unknown
+     */
+    long lastModified(@NonNull String image);
+
+    /**
+     * Get the size of an image, used to validate cached renders
+     *
+     * @param image Image file path or content uri
+     * @return Size in bytes or 0 if unknown
+     */
+    long length(@NonNull String image);
+
+    /**
+     * Remove an image from the list
+     *
+     * @param index Image position
+     */
+    void remove(int index);
+
+    /**
+     * Persist the list if supported and changed
+     */
+    void save();
+
+    /**
+     * Stop following changes and any running load, can be called from any thread
+     */
+    void stopWatching();
+
+}
@@ -13,25 +13,25 @@ package com.softdav.zkmagicwp;
 ///     See the License for the specific language governing permissions and
 ///     limitations under the License.
 
-import static com.softdav.zkmagicwp.WallpaperService.ACTION_CHANGE_WP;
-import static com.softdav.zkmagicwp.WallpaperService.ACTION_REQUEST_UPDATE_UI;
 import static com.softdav.zkmagicwp.WallpaperService.CHANGE_BOTH;
 import static com.softdav.zkmagicwp.WallpaperService.CHANGE_LOCKSCREEN;
 import static com.softdav.zkmagicwp.WallpaperService.CHANGE_WALLPAPER;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
+import android.Manifest;
+import android.content.ComponentName;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.IBinder;
 import android.provider.Settings;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.RadioButton;
@@ -41,14 +41,12 @@ import android.widget.TextView;
 import androidx.activity.EdgeToEdge;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
-import androidx.annotation.RequiresApi;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
 
-import java.util.Objects;
-
 /**
  * MAGIC WALLPAPER CHANGER
  * <p>
@@ -59,7 +57,11 @@ import java.util.Objects;
  * @since 05/01/2025
  */
 public class MainActivity extends AppCompatActivity {
-    public static final String ACTION_UPDATE_UI = "com.softdav.zkmagicwp.update_ui";
+    private static final int REQUEST_MEDIA_PERMISSION = 1;
+
+    private PreviewLoader previewLoader;
+    private Intent pendingStartIntent;      // Start waiting for the media library permission
+    private WallpaperService.WallpaperBinder serviceBinder;    // Set while connected to the running service
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -72,12 +74,11 @@ public class MainActivity extends AppCompatActivity {
             return insets;
         });
 
-        // Requests permissions if necessary
-        if (!Environment.isExternalStorageManager()) {
-            Intent intent = new Intent(Settings.ACTION_MANAGE_APP_ALL_FILES_ACCESS_PERMISSION);
-            intent.setData(Uri.parse("package:" + getPackageName()));
-            startActivity(intent);
-        }
+        previewLoader = new PreviewLoader(getContentResolver());
+
+        // Requests permissions if necessary, the media library does not need all files access
+        SharedPreferences sharedConf = getSharedPreferences(WallpaperService.CONFIG_NAME, MODE_PRIVATE);
+        if (!sharedConf.getBoolean("useMediaStore", false)) requestFolderAccess();
 
         // Button to stop and restart the service
         Button stopServiceButton=findViewById(R.id.btnStop);
@@ -97,10 +98,8 @@ public class MainActivity extends AppCompatActivity {
         nextImageButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                Intent broadcastIntent = new Intent();
-                broadcastIntent.setAction(ACTION_CHANGE_WP);
-                broadcastIntent.putExtra("changeIndex", 0);
-                sendBroadcast(broadcastIntent);
+                if (serviceBinder==null) return;
+                serviceBinder.next();
                 flowButtons(false);
             }
         });
@@ -110,10 +109,8 @@ public class MainActivity extends AppCompatActivity {
         prevImageButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                Intent broadcastIntent = new Intent();
-                broadcastIntent.setAction(ACTION_CHANGE_WP);
-                broadcastIntent.putExtra("changeIndex", -2);
-                sendBroadcast(broadcastIntent);
+                if (serviceBinder==null) return;
+                serviceBinder.prev();
                 flowButtons(false);
             }
         });
@@ -144,6 +141,10 @@ public class MainActivity extends AppCompatActivity {
         txtNrSecondi.setEnabled(true);
         Spinner spCenterWP=findViewById(R.id.spCenterWP);
         spCenterWP.setEnabled(true);
+        Spinner spPixelFormat=findViewById(R.id.spPixelFormat);
+        spPixelFormat.setEnabled(true);
+        EditText txtExtensions=findViewById(R.id.txtExtensions);
+        txtExtensions.setEnabled(true);
         configButtons(true);
         flowButtons(false);
     }
@@ -152,13 +153,20 @@ public class MainActivity extends AppCompatActivity {
      * Start the service by passing configuration from the interface fields
      */
     private void startService(boolean initConf) {
-        Button stopServiceButton=findViewById(R.id.btnStop);
         EditText txtNrSecondi=findViewById(R.id.txtNrSecondi);
         TextView folderImages = findViewById(R.id.txtFolderImages);
         RadioButton chkLockScreen = findViewById(R.id.chkLockScreen);
         RadioButton chkWallPaper = findViewById(R.id.chkWallPaper);
         RadioButton chkBoth = findViewById(R.id.chkBoth);
         Spinner spCenterWP=findViewById(R.id.spCenterWP);
+        Spinner spPixelFormat=findViewById(R.id.spPixelFormat);
+        CheckBox chkRecursive=findViewById(R.id.chkRecursive);
+        CheckBox chkMediaStore=findViewById(R.id.chkMediaStore);
+        CheckBox chkShuffle=findViewById(R.id.chkShuffle);
+        EditText txtExtensions=findViewById(R.id.txtExtensions);
+        CheckBox chkPrefetch=findViewById(R.id.chkPrefetch);
+        CheckBox chkScreenAware=findViewById(R.id.chkScreenAware);
+        CheckBox chkCropHints=findViewById(R.id.chkCropHints);
         Intent startIntent = new Intent(MainActivity.this, WallpaperService.class);
         if (initConf) {
             // Initialize service configuration from ui
@@ -184,11 +192,61 @@ public class MainActivity extends AppCompatActivity {
                 wpCenterMode = 4;
             }
             startIntent.putExtra("wpCenterMode", wpCenterMode);
+            // Entries in the order of the PIXEL_FORMAT constants
+            startIntent.putExtra("pixelFormat", spPixelFormat.getSelectedItemPosition());
+            startIntent.putExtra("recursiveScan", chkRecursive.isChecked());
+            startIntent.putExtra("useMediaStore", chkMediaStore.isChecked());
+            startIntent.putExtra("shuffle", chkShuffle.isChecked());
+            startIntent.putExtra("imageExtensions", txtExtensions.getText().toString().trim());
+            startIntent.putExtra("prefetchEnabled", chkPrefetch.isChecked());
+            startIntent.putExtra("screenAwareScheduling", chkScreenAware.isChecked());
+            startIntent.putExtra("useCropHints", chkCropHints.isChecked());
+            // Media library access requires its own permission, the service starts once it is granted
+            if (chkMediaStore.isChecked() && checkSelfPermission(mediaPermission())!=PackageManager.PERMISSION_GRANTED) {
+                pendingStartIntent = startIntent;
+                requestPermissions(new String[] {mediaPermission()}, REQUEST_MEDIA_PERMISSION);
+                return;
+            }
+            if (!chkMediaStore.isChecked()) requestFolderAccess();
         }
+        launchService(startIntent);
+    }
+
+    /**
+     * Open the system settings to grant all files access, needed to read the images folder
+     */
+    private void requestFolderAccess() {
+        if (Environment.isExternalStorageManager()) return;
+        Intent intent = new Intent(Settings.ACTION_MANAGE_APP_ALL_FILES_ACCESS_PERMISSION);
+        intent.setData(Uri.parse("package:" + getPackageName()));
+        startActivity(intent);
+    }
+
+    /**
+     * @return Permission to read the media library images, READ_MEDIA_IMAGES exists from Android 13
+     */
+    @NonNull
+    private static String mediaPermission() {
+        return Build.VERSION.SDK_INT>=Build.VERSION_CODES.TIRAMISU ? Manifest.permission.READ_MEDIA_IMAGES : Manifest.permission.READ_EXTERNAL_STORAGE;
+    }
+
+    /**
+     * Start the service with its configuration and lock the interface fields
+     *
+     * @param startIntent Service intent with the configuration
+     */
+    private void launchService(Intent startIntent) {
+        Button stopServiceButton=findViewById(R.id.btnStop);
+        EditText txtNrSecondi=findViewById(R.id.txtNrSecondi);
+        Spinner spCenterWP=findViewById(R.id.spCenterWP);
+        Spinner spPixelFormat=findViewById(R.id.spPixelFormat);
+        EditText txtExtensions=findViewById(R.id.txtExtensions);
         startService(startIntent);
         stopServiceButton.setText(R.string.stop_service);
         txtNrSecondi.setEnabled(false);
         spCenterWP.setEnabled(false);
+        spPixelFormat.setEnabled(false);
+        txtExtensions.setEnabled(false);
         configButtons(false);
         flowButtons(true);
     }
@@ -219,55 +277,95 @@ public class MainActivity extends AppCompatActivity {
         chkWallPaper.setEnabled(isEnabled);
         RadioButton chkBoth = findViewById(R.id.chkBoth);
         chkBoth.setEnabled(isEnabled);
+        CheckBox chkRecursive = findViewById(R.id.chkRecursive);
+        chkRecursive.setEnabled(isEnabled);
+        CheckBox chkMediaStore = findViewById(R.id.chkMediaStore);
+        chkMediaStore.setEnabled(isEnabled);
+        CheckBox chkShuffle = findViewById(R.id.chkShuffle);
+        chkShuffle.setEnabled(isEnabled);
+        CheckBox chkPrefetch = findViewById(R.id.chkPrefetch);
+        chkPrefetch.setEnabled(isEnabled);
+        CheckBox chkScreenAware = findViewById(R.id.chkScreenAware);
+        chkScreenAware.setEnabled(isEnabled);
+        CheckBox chkCropHints = findViewById(R.id.chkCropHints);
+        chkCropHints.setEnabled(isEnabled);
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode!=REQUEST_MEDIA_PERMISSION || pendingStartIntent==null) return;
+        Intent startIntent = pendingStartIntent;
+        pendingStartIntent = null;
+        // Without the permission the media library shows no images, the configuration stays editable
+        if (grantResults.length>0 && grantResults[0]==PackageManager.PERMISSION_GRANTED) launchService(startIntent);
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.TIRAMISU)
     @Override
     protected void onResume() {
         super.onResume();
-        // Create and register ui update handler
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(ACTION_UPDATE_UI);
-        registerReceiver(bcReceiverUpdateUI, intentFilter, Context.RECEIVER_EXPORTED);
-        // Requires interface update
-        Intent broadcastIntent = new Intent();
-        broadcastIntent.setAction(ACTION_REQUEST_UPDATE_UI);
-        sendBroadcast(broadcastIntent);
+        // Connect to the service, without starting it, to receive its state
+        bindService(new Intent(MainActivity.this, WallpaperService.class), serviceConnection, 0);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        // Unregister ui update manager
-        unregisterReceiver(bcReceiverUpdateUI);
+        // Stop receiving the service state
+        if (serviceBinder!=null) {
+            serviceBinder.removeListener(stateListener);
+            serviceBinder=null;
+        }
+        unbindService(serviceConnection);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        previewLoader.shutdown();
     }
 
     /**
-     * Create broadcast receiver for ui update
+     * Connection to the running service
+     */
+    private final ServiceConnection serviceConnection=new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            serviceBinder=(WallpaperService.WallpaperBinder) service;
+            serviceBinder.addListener(stateListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            serviceBinder=null;
+        }
+    };
+
+    /**
+     * Update the ui from the service state
      */
-    private final BroadcastReceiver bcReceiverUpdateUI=new BroadcastReceiver() {
+    private final WallpaperService.StateListener stateListener=new WallpaperService.StateListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onStateChanged(@NonNull WallpaperState state) {
             // Update the UI with the received data
             ImageView imgCurrent=findViewById(R.id.imgCurrent);
-            if (intent.getStringExtra("currentImage")!=null && !Objects.requireNonNull(intent.getStringExtra("currentImage")).isEmpty()) {
-                Bitmap bitmap = BitmapFactory.decodeFile(intent.getStringExtra("currentImage"));
-                imgCurrent.setImageBitmap(bitmap);
+            if (state.currentImage!=null && !state.currentImage.isEmpty()) {
+                previewLoader.load(state.currentImage, imgCurrent);
             } else {
-                imgCurrent.setImageBitmap(null);
+                previewLoader.clear(imgCurrent);
             }
-            String lastAction=Objects.requireNonNull(intent.getStringExtra("lastAction"));
-            if (lastAction.equalsIgnoreCase("updateUI") || lastAction.equalsIgnoreCase("changeConf")) {
-                if (intent.getStringExtra("intervalSeconds")!=null && !Objects.requireNonNull(intent.getStringExtra("intervalSeconds")).isEmpty()) {
+            TextView txtMetrics=findViewById(R.id.txtMetrics);
+            txtMetrics.setText(state.metricsSummary);
+            if (state.lastAction.equals(WallpaperState.ACTION_UPDATE_UI) || state.lastAction.equals(WallpaperState.ACTION_CHANGE_CONF)) {
+                if (state.intervalSeconds>0) {
                     EditText txtNrSecondi=findViewById(R.id.txtNrSecondi);
-                    txtNrSecondi.setText(intent.getStringExtra("intervalSeconds"));
+                    txtNrSecondi.setText(String.valueOf(state.intervalSeconds));
                 }
-                if (intent.getStringExtra("folderImages")!=null && !Objects.requireNonNull(intent.getStringExtra("folderImages")).isEmpty()) {
+                if (!state.folderPath.isEmpty()) {
                     TextView folderImages=findViewById(R.id.txtFolderImages);
-                    folderImages.setText(intent.getStringExtra("folderImages"));
+                    folderImages.setText(state.folderPath);
                 }
-                int changeMode=intent.getIntExtra("changeMode", 0);
-                switch (changeMode) {
+                switch (state.changeMode) {
                     case CHANGE_LOCKSCREEN:
                         RadioButton chkLockScreen=findViewById(R.id.chkLockScreen);
                         chkLockScreen.setChecked(true);
@@ -281,13 +379,28 @@ public class MainActivity extends AppCompatActivity {
                         chkBoth.setChecked(true);
                         break;
                 }
-                int wpCenterMode=intent.getIntExtra("wpCenterMode", 0);
-                if (wpCenterMode>0) {
+                if (state.wpCenterMode>0) {
                     Spinner spCenterWP = findViewById(R.id.spCenterWP);
-                    spCenterWP.setSelection(wpCenterMode - 1);
+                    spCenterWP.setSelection(state.wpCenterMode - 1);
                 }
+                Spinner spPixelFormat=findViewById(R.id.spPixelFormat);
+                spPixelFormat.setSelection(state.pixelFormat);
+                CheckBox chkRecursive=findViewById(R.id.chkRecursive);
+                chkRecursive.setChecked(state.recursiveScan);
+                CheckBox chkMediaStore=findViewById(R.id.chkMediaStore);
+                chkMediaStore.setChecked(state.useMediaStore);
+                CheckBox chkShuffle=findViewById(R.id.chkShuffle);
+                chkShuffle.setChecked(state.shuffle);
+                EditText txtExtensions=findViewById(R.id.txtExtensions);
+                txtExtensions.setText(state.imageExtensions);
+                CheckBox chkPrefetch=findViewById(R.id.chkPrefetch);
+                chkPrefetch.setChecked(state.prefetchEnabled);
+                CheckBox chkScreenAware=findViewById(R.id.chkScreenAware);
+                chkScreenAware.setChecked(state.screenAwareScheduling);
+                CheckBox chkCropHints=findViewById(R.id.chkCropHints);
+                chkCropHints.setChecked(state.useCropHints);
             }
-            if (Objects.requireNonNull(intent.getStringExtra("lastAction")).equalsIgnoreCase("changeWP")) {
+            if (state.lastAction.equals(WallpaperState.ACTION_CHANGE_WP)) {
                 flowButtons(true);
             }
         }
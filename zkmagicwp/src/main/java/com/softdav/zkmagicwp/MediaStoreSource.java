@@ -0,0 +1,255 @@
+package com.softdav.zkmagicwp;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Images of a media library folder, enumerated with paged MediaStore queries.
+ * Only the id, size and modification time of each image are kept in memory,
+ * the content uri is built when the image is requested. Images edited in place keep
+ * their uri: a content observer refreshes their size and modification time.
+ */
+final class MediaStoreSource implements ImageSource {
+    private static final int PAGE_SIZE=2000;
+    private static final String[] PROJECTION={
+            MediaStore.MediaColumns._ID,
+            MediaStore.MediaColumns.SIZE,
+            MediaStore.MediaColumns.DATE_MODIFIED
+    };
+    private static final String[] STAT_PROJECTION={
+            MediaStore.MediaColumns.SIZE,
+            MediaStore.MediaColumns.DATE_MODIFIED
+    };
+
+    private final ContentResolver contentResolver;
+    private final Uri collection=MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL);
+    private long[] ids=new long[0];         // Sorted, the query is ordered by id
+    private long[] sizes=new long[0];
+    private int[] dates=new int[0];         // Modification time in seconds
+    private int count=0;
+    private int generation=0;               // Incremented on every load to drop pages of older loads
+    private volatile boolean stopped=false;
+    private boolean loading=false;
+    private ContentObserver observer;
+    private volatile boolean accessDenied=false;    // The last load lacked the media library permission
+
+    /**
+     * Create a media library source
+     *
+     * @param contentResolver Content resolver
+     */
+    MediaStoreSource(@NonNull ContentResolver contentResolver) {
+        this.contentResolver=contentResolver;
+    }
+
+    /**
+     * Load the images of a media library folder. The first page is read immediately,
+     * the following ones are queued on the executor.
+     *
+     * @param relativePath Folder path relative to the storage root, like "Pictures/Camera/"
+     * @param recursive Include subfolders
+     * @param executor Executor on which the pages are loaded
+     * @param onImagesAdded Called on the executor when a page adds images
+     */
+    void load(@NonNull String relativePath, boolean recursive, @NonNull Executor executor, @NonNull Runnable onImagesAdded) {
+        generation++;
+        stopped=false;
+        count=0;
+        loading=true;
+        accessDenied=false;
+        String path=relativePath.endsWith("/") ? relativePath : relativePath + "/";
+        String selection=MediaStore.MediaColumns.RELATIVE_PATH + (recursive ? " LIKE ?" : "=?");
+        String selectionArg=recursive ? path.replace("%", "\\%").replace("_", "\\_") + "%" : path;
+        if (recursive) selection+=" ESCAPE '\\'";
+        loadPage(generation, selection, selectionArg, -1, executor, onImagesAdded);
+        startWatching(executor);
+    }
+
+    /**
+     * Start following the changes of the media library images
+     *
+     * @param executor Executor on which the changes are applied
+     */
+    private synchronized void startWatching(Executor executor) {
+        if (observer!=null) return;
+        observer=new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, @Nullable Uri uri) {
+                if (uri!=null) executor.execute(() -> refresh(uri));
+            }
+        };
+        contentResolver.registerContentObserver(collection, true, observer);
+    }
+
+    /**
+     * Read again the size and modification time of a changed image
+     *
+     * @param uri Changed content uri
+     */
+    private void refresh(Uri uri) {
+        if (stopped) return;
+        int index=indexOf(uri.toString());
+        if (index<0) return;
+        try (Cursor cursor=contentResolver.query(uri, STAT_PROJECTION, null, null)) {
+            if (cursor!=null && cursor.moveToFirst()) {
+                sizes[index]=cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.SIZE));
+                dates[index]=(int) cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATE_MODIFIED));
+            }
+        } catch (RuntimeException e) {
+            Log.e("Error", "Error reading media library: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read one page of images after the given id
+     */
+    private void loadPage(int pageGeneration, String selection, String selectionArg, long afterId,
+                          Executor executor, Runnable onImagesAdded) {
+        if (pageGeneration!=generation || stopped) return;
+        Bundle queryArgs=new Bundle();
+        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection + " AND " + MediaStore.MediaColumns._ID + ">?");
+        queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, new String[] {selectionArg, String.valueOf(afterId)});
+        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, MediaStore.MediaColumns._ID + " ASC");
+        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, PAGE_SIZE);
+        int rows=0;
+        long lastId=afterId;
+        try (Cursor cursor=contentResolver.query(collection, PROJECTION, queryArgs, null)) {
+            if (cursor!=null) {
+                int idColumn=cursor.getColumnIndexOrThrow(MediaStore.MediaColumns._ID);
+                int sizeColumn=cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.SIZE);
+                int dateColumn=cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATE_MODIFIED);
+                ensureCapacity(count + cursor.getCount());
+                while (cursor.moveToNext()) {
+                    lastId=cursor.getLong(idColumn);
+                    ids[count]=lastId;
+                    sizes[count]=cursor.getLong(sizeColumn);
+                    dates[count]=(int) cursor.getLong(dateColumn);
+                    count++;
+                    rows++;
+                }
+            }
+        } catch (SecurityException e) {
+            accessDenied=true;
+            Log.e("Error", "Media library permission not granted: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e("Error", "Error reading media library: " + e.getMessage());
+        }
+        if (rows==PAGE_SIZE) {
+            long nextId=lastId;
+            executor.execute(() -> loadPage(pageGeneration, selection, selectionArg, nextId, executor, onImagesAdded));
+        } else {
+            loading=false;
+        }
+        if (rows>0) onImagesAdded.run();
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count==0;
+    }
+
+    @Override
+    public boolean isScanning() {
+        return loading;
+    }
+
+    /**
+     * @return True if the last load could not read the media library for lack of permission
+     */
+    boolean isAccessDenied() {
+        return accessDenied;
+    }
+
+    @Override
+    @NonNull
+    public String get(int index) {
+        if (index<0 || index>=count) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        return ContentUris.withAppendedId(collection, ids[index]).toString();
+    }
+
+    @Override
+    public boolean exists(int index) {
+        return true;
+    }
+
+    @Override
+    public long lastModified(@NonNull String image) {
+        int index=indexOf(image);
+        return index<0 ? 0 : dates[index]*1000L;
+    }
+
+    @Override
+    public long length(@NonNull String image) {
+        int index=indexOf(image);
+        return index<0 ? 0 : sizes[index];
+    }
+
+    @Override
+    public void remove(int index) {
+        System.arraycopy(ids, index+1, ids, index, count-index-1);
+        System.arraycopy(sizes, index+1, sizes, index, count-index-1);
+        System.arraycopy(dates, index+1, dates, index, count-index-1);
+        count--;
+    }
+
+    @Override
+    public void save() {
+        // The media library is the persistent index
+    }
+
+    @Override
+    public synchronized void stopWatching() {
+        stopped=true;
+        if (observer!=null) {
+            contentResolver.unregisterContentObserver(observer);
+            observer=null;
+        }
+    }
+
+    /**
+     * Find an image from its content uri
+     *
+     * @param image Content uri
+     * @return Image position or a negative value if not found
+     */
+    private int indexOf(String image) {
+        try {
+            return Arrays.binarySearch(ids, 0, count, ContentUris.parseId(Uri.parse(image)));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Grow the arrays to hold at least the given number of images
+     *
+     * @param capacity Required capacity
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity<=ids.length) return;
+        int newCapacity=Math.max(capacity, ids.length + (ids.length >> 1));
+        ids=Arrays.copyOf(ids, newCapacity);
+        sizes=Arrays.copyOf(sizes, newCapacity);
+        dates=Arrays.copyOf(dates, newCapacity);
+    }
+
+}
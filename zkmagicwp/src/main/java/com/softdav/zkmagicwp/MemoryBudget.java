@@ -0,0 +1,156 @@
+package com.softdav.zkmagicwp;
+
+import android.content.ComponentCallbacks2;
+
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Memory limits of the service, derived from the heap size of the device and lowered by
+ * the trim memory callbacks: size of the bitmap pool and of the decoded image cache, memory
+ * of the renders running at the same time, largest single decode, parallel renders and
+ * prefetch. A lowered level goes back up one step at a time once no trim request arrived
+ * for a while.
+ */
+final class MemoryBudget {
+    static final int LEVEL_NORMAL=0;
+    static final int LEVEL_MODERATE=1;      // Smaller pool, cache and renders
+    static final int LEVEL_LOW=2;           // No pool or cache, no prefetch, one render at a time
+    static final int LEVEL_CRITICAL=3;      // As low, with the smallest decodes
+    private static final String[] LEVEL_NAMES={"normal", "moderate", "low", "critical"};
+    private static final long RECOVERY_MILLIS=5*60*1000L;  // Quiet time before raising the level again
+
+    private final long heapBytes;
+    private int level=LEVEL_NORMAL;
+    private long lastTrimTime=0;
+
+    /**
+     * Create a budget for the given heap
+     *
+     * @param memoryClassMb Heap size of the app, as given by ActivityManager.getMemoryClass()
+     */
+    MemoryBudget(int memoryClassMb) {
+        this.heapBytes=memoryClassMb*1024L*1024L;
+    }
+
+    /**
+     * Lower the level for a trim memory request, never raising it
+     *
+     * @param trimLevel ComponentCallbacks2 trim level
+     * @param now Elapsed realtime of the request
+     * @return True if the level changed
+     */
+    synchronized boolean onTrimMemory(int trimLevel, long now) {
+        int newLevel;
+        if (trimLevel>=ComponentCallbacks2.TRIM_MEMORY_COMPLETE || trimLevel==ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            newLevel=LEVEL_CRITICAL;
+        } else if (trimLevel>=ComponentCallbacks2.TRIM_MEMORY_MODERATE || trimLevel==ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            newLevel=LEVEL_LOW;
+        } else if (trimLevel>=ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || trimLevel==ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            newLevel=LEVEL_MODERATE;
+        } else {
+            // UI hidden: only the activity has something to release
+            return false;
+        }
+        lastTrimTime=now;
+        if (newLevel<=level) return false;
+        level=newLevel;
+        return true;
+    }
+
+    /**
+     * Raise the level by one step if no trim request arrived for a while
+     *
+     * @param now Elapsed realtime
+     * @return True if the level changed
+     */
+    synchronized boolean relax(long now) {
+        if (level==LEVEL_NORMAL || now - lastTrimTime<RECOVERY_MILLIS) return false;
+        level--;
+        lastTrimTime=now;
+        return true;
+    }
+
+    /**
+     * @return Current level, one of the LEVEL constants
+     */
+    synchronized int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return Bytes retained by the bitmap pool between changes
+     */
+    synchronized long poolBytes() {
+        switch (level) {
+            case LEVEL_NORMAL: return heapBytes/8;
+            case LEVEL_MODERATE: return heapBytes/16;
+            default: return 0;
+        }
+    }
+
+    /**
+     * @return Bytes of the decoded images kept to compose them again
+     */
+    synchronized long sourceCacheBytes() {
+        switch (level) {
+            case LEVEL_NORMAL: return heapBytes/8;
+            case LEVEL_MODERATE: return heapBytes/16;
+            default: return 0;
+        }
+    }
+
+    /**
+     * @return Bytes held at the same time by the running renders
+     */
+    synchronized long renderBytes() {
+        switch (level) {
+            case LEVEL_NORMAL: return heapBytes/4;
+            case LEVEL_MODERATE: return heapBytes/6;
+            default: return heapBytes/8;
+        }
+    }
+
+    /**
+     * @return Largest subsampled decode, bigger images are decoded with a coarser sample size.
+     *         Unlimited at the normal level, decodes then keep the detail their screen needs.
+     */
+    synchronized long maxDecodeBytes() {
+        switch (level) {
+            case LEVEL_NORMAL: return Long.MAX_VALUE;
+            case LEVEL_CRITICAL: return heapBytes/32;
+            default: return heapBytes/8;
+        }
+    }
+
+    /**
+     * @return True if the wallpaper may render next to the lock screen
+     */
+    synchronized boolean allowParallelRender() {
+        return level<LEVEL_LOW;
+    }
+
+    /**
+     * @return True if the next frame may be rendered and held in advance
+     */
+    synchronized boolean allowPrefetch() {
+        return level<LEVEL_LOW;
+    }
+
+    /**
+     * Print the current limits
+     *
+     * @param writer Output
+     */
+    synchronized void dump(@NonNull PrintWriter writer) {
+        long maxDecodeBytes=maxDecodeBytes();
+        writer.printf(Locale.ROOT, "Memory budget: %s, heap %d MB, pool %d KB, source cache %d KB, renders %d KB, decode %s%n",
+                LEVEL_NAMES[level], heapBytes/(1024*1024), poolBytes()/1024, sourceCacheBytes()/1024, renderBytes()/1024,
+                maxDecodeBytes==Long.MAX_VALUE ? "unlimited" : maxDecodeBytes/1024 + " KB");
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.softdav.zkmagicwp;
+
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Latency histograms and counters of the wallpaper pipeline stages, updated from the
+ * render and decode threads and printed by dumpsys. Latencies are kept in power of two
+ * millisecond buckets, so percentiles are reported as bucket upper bounds.
+ */
+final class PipelineMetrics {
+    static final int STAGE_SCAN=0;          // Synchronous part of an image list load
+    static final int STAGE_DECODE=1;        // Image decode, full or region
+    static final int STAGE_SCALE=2;         // Scale to the screen height
+    static final int STAGE_COMPOSE=3;       // Centering or shifting into the frame
+    static final int STAGE_APPLY=4;         // WallpaperManager setBitmap or setStream
+    static final int STAGE_CHANGE=5;        // Whole wallpaper change
+    private static final String[] STAGE_NAMES={"scan", "decode", "scale", "compose", "apply", "change"};
+
+    static final int FRAME_CACHE_HIT=0;
+    static final int FRAME_CACHE_MISS=1;
+    static final int PREFETCH_HIT=2;
+    static final int PREFETCH_MISS=3;
+    static final int DECODE_FAILURE=4;
+    static final int CHANGE_FAILURE=5;
+    static final int PREFETCH_FAILURE=6;
+    static final int CANCELLED=7;
+    static final int BAD_IMAGE_SKIPPED=8;
+    private static final String[] COUNTER_NAMES={"frame cache hits", "frame cache misses", "prefetch hits", "prefetch misses",
+            "decode failures", "change failures", "prefetch failures", "cancelled renders", "bad images skipped"};
+
+    private static final int BUCKETS=20;    // Up to 2^18 ms, the last bucket holds the rest
+
+    private final Histogram[] histograms=new Histogram[STAGE_NAMES.length];
+    private final AtomicLongArray counters=new AtomicLongArray(COUNTER_NAMES.length);
+    private final AtomicLong allocatedBytes=new AtomicLong();
+    private final long startTime=System.currentTimeMillis();
+
+    /**
+     * Create empty metrics
+     */
+    PipelineMetrics() {
+        for (int i=0; i<histograms.length; i++) histograms[i]=new Histogram();
+    }
+
+    /**
+     * @return Current time for a later call to record()
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the duration of a stage
+     *
+     * @param stage Stage, one of the STAGE constants
+     * @param startNanos Value returned by start() when the stage began
+     */
+    void record(int stage, long startNanos) {
+        histograms[stage].add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Increment a counter
+     *
+     * @param counter Counter, one of the counter constants
+     */
+    void count(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    /**
+     * Account a bitmap allocated by the decoder instead of reusing a pooled one
+     *
+     * @param bytes Bitmap allocation size
+     */
+    void addAllocatedBytes(long bytes) {
+        allocatedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * One line summary for the ui: median decode and apply time, frame cache hit rate and failures
+     *
+     * @return Summary text
+     */
+    @NonNull
+    String summary() {
+        long hits=counters.get(FRAME_CACHE_HIT);
+        long lookups=hits + counters.get(FRAME_CACHE_MISS);
+        long failures=counters.get(DECODE_FAILURE) + counters.get(CHANGE_FAILURE);
+        return String.format(Locale.ROOT, "decode p50 %s, apply p50 %s, cache %d%%, failures %d",
+                formatMillis(histograms[STAGE_DECODE].percentile(50)), formatMillis(histograms[STAGE_APPLY].percentile(50)),
+                lookups>0 ? hits*100/lookups : 0, failures);
+    }
+
+    /**
+     * Print all the metrics
+     *
+     * @param writer Output
+     * @param pool Bitmap pool whose reuse is reported
+     */
+    void dump(@NonNull PrintWriter writer, @NonNull BitmapPool pool) {
+        writer.printf(Locale.ROOT, "Pipeline metrics, %d s since start%n", (System.currentTimeMillis() - startTime)/1000);
+        writer.printf(Locale.ROOT, "  %-8s %7s %9s %9s %9s %9s%n", "stage", "count", "avg ms", "p50 ms", "p90 ms", "max ms");
+        for (int i=0; i<histograms.length; i++) {
+            Histogram histogram=histograms[i];
+            long count=histogram.count.get();
+            writer.printf(Locale.ROOT, "  %-8s %7d %9d %9s %9s %9d%n", STAGE_NAMES[i], count,
+                    count>0 ? histogram.total.get()/count : 0, formatMillis(histogram.percentile(50)),
+                    formatMillis(histogram.percentile(90)), histogram.max.get());
+        }
+        for (int i=0; i<COUNTER_NAMES.length; i++) {
+            writer.printf(Locale.ROOT, "  %s: %d%n", COUNTER_NAMES[i], counters.get(i));
+        }
+        writer.printf(Locale.ROOT, "  decoder allocations: %d KB%n", allocatedBytes.get()/1024);
+        writer.printf(Locale.ROOT, "  bitmap pool: %d hits, %d misses, %d KB allocated, %d KB retained%n",
+                pool.getHits(), pool.getMisses(), pool.getAllocatedBytes()/1024, pool.getCurrentBytes()/1024);
+    }
+
+    /**
+     * Format a bucket upper bound
+     */
+    private static String formatMillis(long millis) {
+        return millis<0 ? "-" : millis==Long.MAX_VALUE ? ">" + (1L << (BUCKETS-2)) : "<" + millis;
+    }
+
+    /**
+     * Lock free histogram with power of two millisecond buckets
+     */
+    private static final class Histogram {
+        final AtomicLongArray buckets=new AtomicLongArray(BUCKETS);
+        final AtomicLong count=new AtomicLong();
+        final AtomicLong total=new AtomicLong();
+        final AtomicLong max=new AtomicLong();
+
+        void add(long millis) {
+            // Bucket i holds the values below 2^i ms
+            int bucket=Math.min(BUCKETS-1, 64 - Long.numberOfLeadingZeros(Math.max(0, millis)));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            total.addAndGet(millis);
+            max.accumulateAndGet(millis, Math::max);
+        }
+
+        /**
+         * @return Upper bound of the bucket holding the percentile, Long.MAX_VALUE for the
+         * last bucket, -1 if empty
+         */
+        long percentile(int percent) {
+            long count=this.count.get();
+            if (count==0) return -1;
+            long rank=Math.max(1, (count*percent + 99)/100);
+            long seen=0;
+            for (int i=0; i<BUCKETS; i++) {
+                seen+=buckets.get(i);
+                if (seen>=rank) return i==BUCKETS-1 ? Long.MAX_VALUE : 1L << i;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.softdav.zkmagicwp;
+
+import android.os.PowerManager;
+
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Render quality and cadence of the service, lowered while the device is hot or in battery
+ * saver: prefetch, decode sample size, bitmap filtering and change interval. The level follows
+ * the thermal status and the battery saver state, going back up as soon as they improve.
+ */
+final class PowerThrottle {
+    static final int LEVEL_NONE=0;
+    static final int LEVEL_LIGHT=1;         // No prefetch, twice the interval
+    static final int LEVEL_MODERATE=2;      // Also half resolution decodes without filtering
+    static final int LEVEL_SEVERE=3;        // Quarter resolution decodes, four times the interval
+    private static final String[] LEVEL_NAMES={"none", "light", "moderate", "severe"};
+    private static final int[] SAMPLE_SIZE_FACTORS={1, 1, 2, 4};
+    private static final int[] INTERVAL_FACTORS={1, 2, 3, 4};
+
+    private int thermalStatus=PowerManager.THERMAL_STATUS_NONE;
+    private boolean powerSaveMode=false;
+    private int level=LEVEL_NONE;
+
+    /**
+     * Set the device state
+     *
+     * @param thermalStatus PowerManager thermal status
+     * @param powerSaveMode True if battery saver is on
+     * @return True if the level changed
+     */
+    synchronized boolean update(int thermalStatus, boolean powerSaveMode) {
+        this.thermalStatus=thermalStatus;
+        this.powerSaveMode=powerSaveMode;
+        int newLevel=Math.max(thermalLevel(thermalStatus), powerSaveMode ? LEVEL_LIGHT : LEVEL_NONE);
+        if (newLevel==level) return false;
+        level=newLevel;
+        return true;
+    }
+
+    /**
+     * @return Current level, one of the LEVEL constants
+     */
+    synchronized int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return Factor applied to the sample size chosen for the screen, a power of two
+     */
+    synchronized int sampleSizeFactor() {
+        return SAMPLE_SIZE_FACTORS[level];
+    }
+
+    /**
+     * @return True if bitmaps are scaled with bilinear filtering
+     */
+    synchronized boolean filterBitmap() {
+        return level<LEVEL_MODERATE;
+    }
+
+    /**
+     * @return True if the next frame may be rendered in advance
+     */
+    synchronized boolean allowPrefetch() {
+        return level==LEVEL_NONE;
+    }
+
+    /**
+     * Stretch the change interval to the level
+     *
+     * @param intervalMillis Configured interval
+     * @return Interval to use
+     */
+    synchronized long stretchInterval(long intervalMillis) {
+        return intervalMillis*INTERVAL_FACTORS[level];
+    }
+
+    /**
+     * @return Short description of the level and its cause, for the service notification
+     */
+    @NonNull
+    synchronized String describe() {
+        if (level==LEVEL_NONE) return "full quality";
+        String cause=thermalLevel(thermalStatus)>=level ? "device hot" : "battery saver";
+        return String.format(Locale.ROOT, "%s throttling, %s", LEVEL_NAMES[level], cause);
+    }
+
+    /**
+     * Print the current state
+     *
+     * @param writer Output
+     */
+    synchronized void dump(@NonNull PrintWriter writer) {
+        writer.printf(Locale.ROOT, "Power throttle: %s, thermal status %d, battery saver %b, sample size x%d, interval x%d%n",
+                LEVEL_NAMES[level], thermalStatus, powerSaveMode, SAMPLE_SIZE_FACTORS[level], INTERVAL_FACTORS[level]);
+    }
+
+    private static int thermalLevel(int thermalStatus) {
+        if (thermalStatus>=PowerManager.THERMAL_STATUS_SEVERE) return LEVEL_SEVERE;
+        if (thermalStatus>=PowerManager.THERMAL_STATUS_MODERATE) return LEVEL_MODERATE;
+        if (thermalStatus>=PowerManager.THERMAL_STATUS_LIGHT) return LEVEL_LIGHT;
+        return LEVEL_NONE;
+    }
+
+}
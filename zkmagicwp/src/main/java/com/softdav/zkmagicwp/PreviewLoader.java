@@ -0,0 +1,191 @@
+package com.softdav.zkmagicwp;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.widget.ImageView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Loads the current image preview off the main thread at the size of the target view,
+ * using the embedded EXIF thumbnail when it is big enough, and keeps the recent
+ * previews in memory so that moving back and forth redraws immediately
+ */
+final class PreviewLoader {
+    private final ContentResolver contentResolver;
+    private final Handler handler=new Handler(Looper.getMainLooper());
+    private final ExecutorService executor=Executors.newSingleThreadExecutor(r -> {
+        Thread thread=new Thread(r, "PreviewLoader");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final LruCache<String, Bitmap> cache;
+    private final Map<View, View.OnLayoutChangeListener> waiting=new WeakHashMap<>();  // Views not laid out yet, main thread only
+
+    /**
+     * Create a preview loader
+     *
+     * @param contentResolver Content resolver used for media library images
+     */
+    PreviewLoader(@NonNull ContentResolver contentResolver) {
+        this.contentResolver=contentResolver;
+        int maxBytes=(int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory()/16);
+        cache=new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+    }
+
+    /**
+     * Show the preview of an image in a view. Must be called on the main thread.
+     *
+     * @param image Image file path or content uri
+     * @param view Target view
+     */
+    void load(@NonNull String image, @NonNull ImageView view) {
+        view.setTag(image);
+        if (view.getWidth()==0 && view.getHeight()==0) {
+            // Wait for the next layout of the view, then load the image shown at that time
+            if (!waiting.containsKey(view)) {
+                View.OnLayoutChangeListener listener=new View.OnLayoutChangeListener() {
+                    @Override
+                    public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                               int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                        // Still empty: keep waiting, a gone view gets no layout pass at all
+                        if (right==left && bottom==top) return;
+                        v.removeOnLayoutChangeListener(this);
+                        waiting.remove(v);
+                        Object current=v.getTag();
+                        if (current instanceof String) load((String) current, view);
+                    }
+                };
+                waiting.put(view, listener);
+                view.addOnLayoutChangeListener(listener);
+            }
+            return;
+        }
+        int targetWidth=view.getWidth()>0 ? view.getWidth() : view.getHeight();
+        int targetHeight=view.getHeight()>0 ? view.getHeight() : view.getWidth();
+        String key=image + "|" + targetWidth + "x" + targetHeight;
+        Bitmap cached=cache.get(key);
+        if (cached!=null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+        executor.execute(() -> {
+            Bitmap bitmap=decodePreview(image, targetWidth, targetHeight);
+            if (bitmap!=null) cache.put(key, bitmap);
+            handler.post(() -> {
+                if (image.equals(view.getTag())) view.setImageBitmap(bitmap);
+            });
+        });
+    }
+
+    /**
+     * Remove the preview from a view. Must be called on the main thread.
+     *
+     * @param view Target view
+     */
+    void clear(@NonNull ImageView view) {
+        view.setTag(null);
+        view.setImageBitmap(null);
+    }
+
+    /**
+     * Stop loading previews and release the cached ones
+     */
+    void shutdown() {
+        for (Map.Entry<View, View.OnLayoutChangeListener> entry : waiting.entrySet()) {
+            entry.getKey().removeOnLayoutChangeListener(entry.getValue());
+        }
+        waiting.clear();
+        executor.shutdownNow();
+        handler.removeCallbacksAndMessages(null);
+        cache.evictAll();
+    }
+
+    /**
+     * Decode a preview, from the EXIF thumbnail if big enough or subsampled from the image
+     *
+     * @param image Image file path or content uri
+     * @param targetWidth View width
+     * @param targetHeight View height
+     * @return Preview bitmap or null if the image cannot be decoded
+     */
+    @Nullable
+    private Bitmap decodePreview(String image, int targetWidth, int targetHeight) {
+        try (ParcelFileDescriptor pfd=open(image)) {
+            FileDescriptor fd=pfd.getFileDescriptor();
+            // Embedded thumbnail, good enough if at least half the view size
+            try {
+                ExifInterface exif=new ExifInterface(fd);
+                if (exif.hasThumbnail()) {
+                    Bitmap thumbnail=exif.getThumbnailBitmap();
+                    if (thumbnail!=null && thumbnail.getWidth()*2>=targetWidth && thumbnail.getHeight()*2>=targetHeight) {
+                        return thumbnail;
+                    }
+                }
+            } catch (IOException e) {
+                // No readable EXIF data
+            }
+            // Subsampled decode at the view size, from the start of the file
+            Os.lseek(fd, 0, OsConstants.SEEK_SET);
+            BitmapFactory.Options options=new BitmapFactory.Options();
+            options.inJustDecodeBounds=true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+            if (options.outWidth<=0 || options.outHeight<=0) return null;
+            options.inSampleSize=1;
+            while (options.outWidth/(options.inSampleSize*2)>=targetWidth && options.outHeight/(options.inSampleSize*2)>=targetHeight) {
+                options.inSampleSize*=2;
+            }
+            options.inJustDecodeBounds=false;
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        } catch (IOException | ErrnoException | SecurityException e) {
+            Log.e("Error", "Preview error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Open an image file or content uri for reading
+     *
+     * @param image Image file path or content uri
+     * @return Open file descriptor
+     * @throws IOException If the image cannot be opened
+     */
+    @NonNull
+    private ParcelFileDescriptor open(String image) throws IOException {
+        if (image.startsWith("content:")) {
+            ParcelFileDescriptor pfd=contentResolver.openFileDescriptor(Uri.parse(image), "r");
+            if (pfd==null) throw new IOException("No content for " + image);
+            return pfd;
+        }
+        return ParcelFileDescriptor.open(new File(image), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.softdav.zkmagicwp;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Byte budget shared by the renders running at the same time. A render waits until its
+ * estimated memory fits in the budget, except when nothing else is running, so that a single
+ * oversized image is still rendered alone instead of blocking forever.
+ */
+final class RenderBudget {
+    private long maxBytes;
+    private long usedBytes=0;
+
+    /**
+     * Create a budget
+     *
+     * @param maxBytes Maximum bytes held at the same time by the running renders
+     */
+    RenderBudget(long maxBytes) {
+        this.maxBytes=maxBytes;
+    }
+
+    /**
+     * Change the budget, the renders already running keep their memory
+     *
+     * @param maxBytes Maximum bytes held at the same time by the running renders
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes=maxBytes;
+        notifyAll();
+    }
+
+    /**
+     * Reserve memory for a render, waiting for the other renders to release enough of it
+     *
+     * @param bytes Estimated peak memory of the render
+     * @throws InterruptedException If interrupted while waiting
+     */
+    synchronized void acquire(long bytes) throws InterruptedException {
+        while (usedBytes>0 && usedBytes + bytes>maxBytes) wait();
+        usedBytes+=bytes;
+    }
+
+    /**
+     * Release the memory reserved by a completed render
+     *
+     * @param bytes Bytes given to acquire()
+     */
+    synchronized void release(long bytes) {
+        usedBytes-=bytes;
+        notifyAll();
+    }
+
+}
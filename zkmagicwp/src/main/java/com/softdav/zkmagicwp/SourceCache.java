@@ -0,0 +1,166 @@
+package com.softdav.zkmagicwp;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Byte bounded LRU of recently decoded images scaled to the screen height, so that the same
+ * image can be composed again, for the other screen, another center mode or a new screen
+ * size, without reading the file. Each image keeps the screen size it was scaled for:
+ * a request for the same size shares the cached bitmap, a smaller screen is scaled down
+ * from it and anything that would need more detail is a miss. The cache owns a share of
+ * its bitmaps in the pool, an evicted bitmap is reused once its last user gave it back.
+ * Thread safe: lookups take their share under the same lock as the evictions, so that
+ * a bitmap is never given back to the pool between its lookup and its use.
+ */
+final class SourceCache {
+    private final LruCache<String, Entry> cache;
+    private final BitmapPool pool;
+    private long hits=0;
+    private long misses=0;
+
+    /**
+     * Create an empty cache
+     *
+     * @param maxBytes Maximum bytes of the cached bitmaps, 0 to cache nothing
+     * @param pool Pool sharing the cached bitmaps with their users
+     */
+    SourceCache(long maxBytes, @NonNull BitmapPool pool) {
+        this.pool=pool;
+        cache=new LruCache<String, Entry>(toMaxSize(maxBytes)) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return value.bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+                pool.put(oldValue.bitmap);
+            }
+        };
+    }
+
+    /**
+     * Change the maximum size of the cache, releasing bitmaps if necessary
+     *
+     * @param maxBytes Maximum bytes of the cached bitmaps, 0 to cache nothing
+     */
+    synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes<=0) cache.evictAll();
+        cache.resize(toMaxSize(maxBytes));
+    }
+
+    /**
+     * Get a cached image scaled for a screen
+     *
+     * @param key Image identity, including its modification time
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @return Image scaled to the screen height, not to be modified, or null if not cached.
+     *         The caller gives it back to the pool.
+     */
+    @Nullable
+    Bitmap get(@NonNull String key, int screenWidth, int screenHeight) {
+        Bitmap source;
+        int width;
+        synchronized (this) {
+            Entry entry=cache.get(key);
+            width=entry==null ? 0 : targetWidth(entry, screenWidth, screenHeight);
+            if (width<=0) {
+                misses++;
+                return null;
+            }
+            hits++;
+            // Evicted from now on, the bitmap stays valid until this share is given back
+            source=entry.bitmap;
+            pool.share(source);
+        }
+        if (width==source.getWidth() && screenHeight==source.getHeight()) return source;
+        Bitmap.Config config=source.getConfig()==Bitmap.Config.RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        Bitmap bitmap=pool.obtain(width, screenHeight, config);
+        Matrix matrix=new Matrix();
+        matrix.postScale((float) width / source.getWidth(), (float) screenHeight / source.getHeight());
+        new Canvas(bitmap).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        pool.put(source);
+        return bitmap;
+    }
+
+    /**
+     * Keep a decoded image, unless it would take more than half the cache. The cache takes
+     * a share of the bitmap instead of a copy: the caller must not modify it anymore and
+     * still gives its own share back to the pool.
+     *
+     * @param key Image identity, including its modification time
+     * @param bitmap Image scaled to the screen height, owned by the caller
+     * @param screenWidth Screen width the image was scaled for
+     */
+    synchronized void put(@NonNull String key, @NonNull Bitmap bitmap, int screenWidth) {
+        if (bitmap.getConfig()==Bitmap.Config.HARDWARE || bitmap.getAllocationByteCount()>cache.maxSize()/2) return;
+        pool.share(bitmap);
+        cache.put(key, new Entry(bitmap, screenWidth));
+    }
+
+    /**
+     * @return Bytes of the cached bitmaps
+     */
+    long getCurrentBytes() {
+        return cache.size();
+    }
+
+    /**
+     * @return Number of requests served from the cache
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of requests the cache could not serve
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Width of the image scaled for a screen, following FitGeometry.scaledWidth(): never
+     * narrower than the screen, wider only if the image is. The original aspect ratio is known
+     * only if the cached image was not widened to its screen.
+     *
+     * @return Target width, or 0 if the cached image has not enough detail for it
+     */
+    private static int targetWidth(Entry entry, int screenWidth, int screenHeight) {
+        int width=entry.bitmap.getWidth();
+        int height=entry.bitmap.getHeight();
+        if (height<screenHeight) return 0;
+        if (height==screenHeight && entry.screenWidth==screenWidth) return width;
+        if (width>entry.screenWidth) return Math.max(screenWidth, (int) ((long) width*screenHeight/height));
+        // Widened or exactly as wide as its screen: only known to be narrower than the new screen
+        return (long) screenWidth*height>=(long) width*screenHeight ? screenWidth : 0;
+    }
+
+    private static int toMaxSize(long maxBytes) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes));
+    }
+
+    /**
+     * Cached image and the screen width it was scaled for
+     */
+    private static final class Entry {
+        final Bitmap bitmap;
+        final int screenWidth;
+
+        Entry(Bitmap bitmap, int screenWidth) {
+            this.bitmap=bitmap;
+            this.screenWidth=screenWidth;
+        }
+    }
+
+}
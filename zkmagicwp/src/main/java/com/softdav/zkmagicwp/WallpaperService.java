@@ -1,26 +1,40 @@
 package com.softdav.zkmagicwp;
 
-import static com.softdav.zkmagicwp.MainActivity.ACTION_UPDATE_UI;
-
+import android.app.ActivityManager;
+import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
+import android.net.Uri;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.ImageDecoder;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.os.ParcelFileDescriptor;
 import android.app.WallpaperManager;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 import android.util.DisplayMetrics;
 import android.view.WindowManager;
@@ -30,10 +44,33 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 
+import com.softdav.zkmagicwp.core.ChangeSchedule;
+import com.softdav.zkmagicwp.core.FitGeometry;
+import com.softdav.zkmagicwp.core.ImageOrder;
+import com.softdav.zkmagicwp.core.ScanFilter;
+import com.softdav.zkmagicwp.core.ShuffleOrder;
+
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.util.ArrayList;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * MAGIC WALLPAPER CHANGER
@@ -45,51 +82,137 @@ import java.util.Objects;
  * @since 05/01/2025
  */
 public class WallpaperService extends Service {
-    public static final String ACTION_CHANGE_WP = "com.softdav.zkmagicwp.change_wp";
-    public static final String ACTION_REQUEST_UPDATE_UI = "com.softdav.zkmagicwp.request_update_ui";
     public static final int CHANGE_LOCKSCREEN=1;
     public static final int CHANGE_WALLPAPER=2;
     public static final int CHANGE_BOTH=3;
+    public static final int PIXEL_FORMAT_QUALITY=0;     // ARGB_8888 everywhere
+    public static final int PIXEL_FORMAT_COMPACT=1;     // RGB_565 for opaque sources
+    public static final int PIXEL_FORMAT_HARDWARE=2;    // Hardware bitmaps for the frames never drawn on a canvas
     private static final String CHANNEL_ID = "ZkScreenRotationChannel";
-    private static final String CONFIG_NAME = "ZkMagicWPConf";
+    static final String CONFIG_NAME = "ZkMagicWPConf";
     private static final String DEFAULT_FOLDER_PATH=Environment.getExternalStorageDirectory().getAbsolutePath()+"/MyMedia";
     private static final int DEFAULT_INTERVAL_SECONDS=300;
+    private static final String DEFAULT_IMAGE_EXTENSIONS="jpg,jpeg,png,webp";
+    private static final long FRAME_CACHE_MAX_BYTES=128L*1024*1024;
+    private static final int MAX_SKIPPED_FAILURES=3;  // Images tried after a decode failure in the same change
 
-    private final List<String> images=new ArrayList<>();    // List of file names to display
-    private int currentIndex=0;
-    private String currentFolderPath="";
-    private String folderPath="";
-    private int intervalSeconds=0;
-    private int changeMode=0;
-    private int wpCenterMode=0;
+    // Render state, owned by the render thread
+    private ImageSource images;             // Images to display, from folderIndex or mediaSource
+    private ImageIndex folderIndex;
+    private MediaStoreSource mediaSource;
+    private int currentIndex=0;             // Position in the rotation, in list or shuffled order
+    private ShuffleOrder shuffleOrder;      // Shuffled order of the current list, rebuilt when its size changes
+    private String currentScanConf="";      // Folder and scan options of the loaded images
+    private int savedIndex=0;               // Rotation position saved by the previous run
+    private String savedScanConf="";        // Images of savedIndex
+    private volatile long lastChangeTime=0; // Wall clock time of the last change, saved
+    private boolean waitingForImages=false; // Change as soon as the running scan finds an image
+    // Running configuration, written by the main thread
+    private volatile String folderPath="";
+    private volatile int intervalSeconds=0;
+    private volatile int changeMode=0;
+    private volatile int wpCenterMode=0;
+    private volatile boolean recursiveScan=false;
+    private volatile String imageExtensions=DEFAULT_IMAGE_EXTENSIONS;
+    private volatile boolean useMediaStore=false;
+    private volatile boolean shuffle=false;
+    private volatile int pixelFormat=PIXEL_FORMAT_QUALITY;
+    private volatile long shuffleSeed=0;    // Seed of the shuffled order, kept across restarts
 
-    private Handler handler;
-    private Runnable wallpaperChanger;
+    private Handler handler;                // Main thread handler for alarms and ui publication
+    private ExecutorService renderExecutor; // Single background thread running the render pipeline
+    private ExecutorService decodeExecutor; // Renders the wallpaper next to the lock screen in CHANGE_BOTH mode
+    private RenderBudget renderBudget;      // Memory shared by the renders running in parallel
+    private MemoryBudget memoryBudget;      // Limits of the pool, renders and decodes under memory pressure
+    private PowerThrottle powerThrottle;    // Render quality and interval while hot or in battery saver
+    private final PipelineMetrics metrics=new PipelineMetrics();
+    private AlarmManager alarmManager;
+    private PowerManager powerManager;
+    private boolean screenAwareScheduling=true; // Collapse the ticks missed while the screen is off
+    private ChangeSchedule changeSchedule;  // Scheduling decisions, main thread only
+    private long nextChangeTime=0;          // Elapsed realtime of the next periodic change, 0 if none, main thread only
+    private boolean useCropHints=false;     // Give WallpaperManager the scaled image and its visible crop, decoding the whole image
     private static boolean isRunning=false;
-    private boolean isChanging=false;
+    private final AtomicBoolean isChanging=new AtomicBoolean(false);    // A change is queued or running
+    // Navigation queue, guarded by navigationLock
+    private final Object navigationLock=new Object();
+    private int pendingMove=0;              // Sum of the relative moves not yet picked up by the render thread
+    private int pendingSeek=-1;             // Absolute target of the queued request, or -1
+    private boolean navigationQueued=false;
+    private boolean navigationRunning=false;
+    private volatile int navigationGeneration=0;    // Changed when the work in flight becomes stale
+    private int renderGeneration=0;         // Generation of the running render, owned by the render thread
+    // Set by limitSampleSize() when a decode of the running render got less detail than its screen needs
+    private final ThreadLocal<Boolean> reducedDecode=ThreadLocal.withInitial(() -> Boolean.FALSE);
+    private boolean prefetchEnabled=true;   // Render the next image ahead of the timer tick
+    private RenderedFrame prefetchedFrame;  // Frame prepared for the next change, owned by the render thread
+    private BitmapPool bitmapPool;          // Decode, scale and compose targets reused between changes
+    private SourceCache sourceCache;        // Recently decoded images scaled to the screen height
+    private int[] appliedScreenSize;        // Screen size of the last applied frame, owned by the render thread
+    private FrameDiskCache frameCache;      // Rendered frames, created on the render thread
+    private BadImageCache badImages;        // Images skipped until they change, created on the render thread
+    private final List<StateListener> stateListeners=new CopyOnWriteArrayList<>();
+    private final WallpaperBinder binder=new WallpaperBinder();
 
     /**
-     * Create boardcast receiver for wallpaper update request
+     * Receives the service state, called on the main thread
      */
-    private final BroadcastReceiver bcReceiverChangeWP=new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            currentIndex=currentIndex+intent.getIntExtra("changeIndex", 0);
-            changeWallpaper();
-        }
-    };
+    public interface StateListener {
+        /**
+         * Service state changed
+         *
+         * @param state New state
+         */
+        void onStateChanged(@NonNull WallpaperState state);
+    }
 
     /**
-     * Create a broadcast receiver for ui data update requests
+     * In-process interface returned to the bound clients
      */
-    private final BroadcastReceiver bcReceiverRequestUpdateUI=new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            // Send ui update signal
-            Intent broadcastIntent=buildUpdateUI("updateUI");
-            sendBroadcast(broadcastIntent);
+    public class WallpaperBinder extends Binder {
+        /**
+         * Move to the next image
+         */
+        public void next() {
+            requestMove(1);
+        }
+
+        /**
+         * Move back to the previous image
+         */
+        public void prev() {
+            requestMove(-1);
+        }
+
+        /**
+         * Show a given image
+         *
+         * @param index Image position in the list, starting from 0, also in shuffle mode
+         */
+        public void seek(int index) {
+            requestSeek(index);
         }
-    };
+
+        /**
+         * Subscribe to the state changes, the current state is sent immediately.
+         * Must be called on the main thread.
+         *
+         * @param listener State listener
+         */
+        public void addListener(@NonNull StateListener listener) {
+            if (!stateListeners.contains(listener)) stateListeners.add(listener);
+            renderExecutor.execute(() -> publishUpdateUI(WallpaperState.ACTION_UPDATE_UI));
+        }
+
+        /**
+         * Unsubscribe from the state changes
+         *
+         * @param listener State listener
+         */
+        public void removeListener(@NonNull StateListener listener) {
+            stateListeners.remove(listener);
+        }
+    }
 
     /**
      * Initialize the service
@@ -98,37 +221,47 @@ public class WallpaperService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        // Foreground first, the rest only creates objects and defers its work
         createNotificationChannel();
+        startForeground(1, buildNotification());
         loadConfig();
 
-        handler = new Handler();
-        wallpaperChanger = new Runnable() {
-            @Override
-            public void run() {
-                changeWallpaper();
-                handler.postDelayed(this, intervalSeconds*1000L);
-            }
-        };
-
-        handler.post(wallpaperChanger);
+        memoryBudget = new MemoryBudget(getSystemService(ActivityManager.class).getMemoryClass());
+        bitmapPool = new BitmapPool(memoryBudget.poolBytes());
+        sourceCache = new SourceCache(memoryBudget.sourceCacheBytes(), bitmapPool);
+        folderIndex = new ImageIndex(new File(getFilesDir(), "image_index.bin"));
+        mediaSource = new MediaStoreSource(getContentResolver());
+        images = folderIndex;
+        handler = new Handler(Looper.getMainLooper());
+        renderExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "WallpaperRender");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        decodeExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "WallpaperDecode");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        renderBudget = new RenderBudget(memoryBudget.renderBytes());
+        renderExecutor.execute(() -> {
+            frameCache = new FrameDiskCache(new File(getCacheDir(), "frames"), FRAME_CACHE_MAX_BYTES);
+            badImages = new BadImageCache(new File(getFilesDir(), "bad_images.bin"));
+        });
+        changeSchedule = new ChangeSchedule(screenAwareScheduling);
+        alarmManager = getSystemService(AlarmManager.class);
+        powerManager = getSystemService(PowerManager.class);
+        powerThrottle = new PowerThrottle();
+        if (powerThrottle.update(powerManager.getCurrentThermalStatus(), powerManager.isPowerSaveMode())) updateNotification();
+        powerManager.addThermalStatusListener(getMainExecutor(), thermalListener);
 
-        // Register broadcast receiver for changing wallpaper
+        // Register receiver for screen state and battery saver changes
         IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(ACTION_CHANGE_WP);
-        registerReceiver(bcReceiverChangeWP, intentFilter, Context.RECEIVER_EXPORTED);
-
-        // Register broadcast receiver for ui update request
-        intentFilter = new IntentFilter();
-        intentFilter.addAction(ACTION_REQUEST_UPDATE_UI);
-        registerReceiver(bcReceiverRequestUpdateUI, intentFilter, Context.RECEIVER_EXPORTED);
-
-        Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
-                .setContentTitle("ZKMagic Wallpaper")
-                .setContentText("Changing wallpaper periodically")
-                .setSmallIcon(R.drawable.ic_launcher_foreground)
-                .build();
-
-        startForeground(1, notification);
+        intentFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        intentFilter.addAction(Intent.ACTION_SCREEN_ON);
+        intentFilter.addAction(Intent.ACTION_USER_PRESENT);
+        intentFilter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        registerReceiver(bcReceiverScreenState, intentFilter, Context.RECEIVER_NOT_EXPORTED);
     }
 
     @Override
@@ -144,12 +277,31 @@ public class WallpaperService extends Service {
                     changeMode = intent.getIntExtra("changeMode", 0);
                 if (intent.getIntExtra("wpCenterMode", 0) > 0)
                     wpCenterMode = intent.getIntExtra("wpCenterMode", 0);
+                if (intent.hasExtra("recursiveScan"))
+                    recursiveScan = intent.getBooleanExtra("recursiveScan", false);
+                if (intent.hasExtra("useMediaStore"))
+                    useMediaStore = intent.getBooleanExtra("useMediaStore", false);
+                if (intent.hasExtra("shuffle"))
+                    shuffle = intent.getBooleanExtra("shuffle", false);
+                if (intent.hasExtra("pixelFormat"))
+                    pixelFormat = intent.getIntExtra("pixelFormat", PIXEL_FORMAT_QUALITY);
+                if (intent.getStringExtra("imageExtensions") != null && !Objects.requireNonNull(intent.getStringExtra("imageExtensions")).isEmpty())
+                    imageExtensions = intent.getStringExtra("imageExtensions");
+                if (intent.hasExtra("prefetchEnabled"))
+                    prefetchEnabled = intent.getBooleanExtra("prefetchEnabled", true);
+                if (intent.hasExtra("useCropHints"))
+                    useCropHints = intent.getBooleanExtra("useCropHints", false);
+                if (intent.hasExtra("screenAwareScheduling")) {
+                    screenAwareScheduling = intent.getBooleanExtra("screenAwareScheduling", true);
+                    changeSchedule = new ChangeSchedule(screenAwareScheduling);
+                }
             }
             // Save new running configuration
             saveConfig();
             // Send ui update signal
-            Intent broadcastIntent=buildUpdateUI("changeConf");
-            sendBroadcast(broadcastIntent);
+            renderExecutor.execute(() -> publishUpdateUI(WallpaperState.ACTION_CHANGE_CONF));
+            // First change once the start configuration is read, then on the timer
+            startRotation(intent==null);
         }
         isRunning=true;
         return START_STICKY;    // The service is restarted if terminated by the system
@@ -158,147 +310,1278 @@ public class WallpaperService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        handler.removeCallbacks(wallpaperChanger);
-        unregisterReceiver(bcReceiverChangeWP);
-        unregisterReceiver(bcReceiverRequestUpdateUI);
+        alarmManager.cancel(changeAlarm);
+        handler.removeCallbacks(changeTick);
+        unregisterReceiver(bcReceiverScreenState);
+        powerManager.removeThermalStatusListener(thermalListener);
+        stateListeners.clear();
+        folderIndex.stopWatching();
+        mediaSource.stopWatching();
+        renderExecutor.shutdownNow();
+        decodeExecutor.shutdownNow();
+        bitmapPool.clear();
         isRunning=false;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (memoryBudget.onTrimMemory(level, SystemClock.elapsedRealtime())) applyMemoryBudget();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        renderExecutor.execute(this::checkScreenSize);
+    }
+
+    /**
+     * Render the current image again if the screen size changed since it was applied, from
+     * the decoded image cache when possible. A rotation alone keeps the portrait size and
+     * renders nothing. Must be called on the render thread.
+     */
+    private void checkScreenSize() {
+        if (appliedScreenSize==null || Arrays.equals(appliedScreenSize, getScreenSize())) return;
+        discardPrefetchedFrame();
+        requestMove(0);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (memoryBudget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE, SystemClock.elapsedRealtime())) applyMemoryBudget();
+    }
+
+    /**
+     * Resize the bitmap pool, the decoded image cache and the render budget to the memory level and drop the
+     * prefetched frame when prefetch is no longer allowed
+     */
+    private void applyMemoryBudget() {
+        bitmapPool.setMaxBytes(memoryBudget.poolBytes());
+        sourceCache.setMaxBytes(memoryBudget.sourceCacheBytes());
+        renderBudget.setMaxBytes(memoryBudget.renderBytes());
+        if (!memoryBudget.allowPrefetch()) renderExecutor.execute(this::discardPrefetchedFrame);
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return binder;
+    }
+
+    /**
+     * Periodic change while the screen is on, posted on the main thread handler
+     */
+    private final Runnable changeTick=this::onChangeTick;
+
+    /**
+     * Periodic change while the screen is off, delivered on the main thread by the alarm manager
+     */
+    private final AlarmManager.OnAlarmListener changeAlarm=this::onChangeTick;
+
+    /**
+     * Periodic tick
+     */
+    private void onChangeTick() {
+        // Nobody sees the wallpaper with the screen off, change once when it is back
+        nextChangeTime=0;
+        if (!changeSchedule.onTick(powerManager.isInteractive())) return;
+        requestChange();
+        scheduleNextChange();
+    }
+
+    /**
+     * Create a broadcast receiver for screen state changes
+     */
+    private final BroadcastReceiver bcReceiverScreenState=new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getAction()==null) return;
+            switch (intent.getAction()) {
+                case Intent.ACTION_SCREEN_OFF:
+                    armChangeTimer();
+                    // Prepare the next frame so that the change on wake up only applies it
+                    if (changeSchedule.onScreenOff()) renderExecutor.execute(WallpaperService.this::prefetchNextFrame);
+                    break;
+                case Intent.ACTION_SCREEN_ON:
+                    collectMissedTick();
+                    // The lock screen is visible from now
+                    if (changeSchedule.onScreenOn(changeMode!=CHANGE_WALLPAPER)) applyMissedChange();
+                    else armChangeTimer();
+                    break;
+                case Intent.ACTION_USER_PRESENT:
+                    collectMissedTick();
+                    if (changeSchedule.onUserPresent()) applyMissedChange();
+                    break;
+                case PowerManager.ACTION_POWER_SAVE_MODE_CHANGED:
+                    updatePowerThrottle();
+                    break;
+            }
+        }
+    };
+
+    /**
+     * Thermal status changes, delivered on the main thread
+     */
+    private final PowerManager.OnThermalStatusChangedListener thermalListener=status -> updatePowerThrottle();
+
+    /**
+     * Read the thermal status and battery saver state and apply the throttling level if it changed:
+     * drop the prefetched frame, move the next change to the new interval from the last one and
+     * show the level in the notification. Must be called on the main thread.
+     */
+    private void updatePowerThrottle() {
+        if (!powerThrottle.update(powerManager.getCurrentThermalStatus(), powerManager.isPowerSaveMode())) return;
+        if (!powerThrottle.allowPrefetch()) renderExecutor.execute(this::discardPrefetchedFrame);
+        if (lastChangeTime>0) scheduleChange(ChangeSchedule.resumeDelayMillis(lastChangeTime, System.currentTimeMillis(), changeIntervalMillis()));
+        updateNotification();
+    }
+
+    /**
+     * Build the service notification, showing the throttling level when the quality is reduced
+     *
+     * @return Notification
+     */
+    @NonNull
+    private Notification buildNotification() {
+        String text = "Changing wallpaper periodically";
+        if (powerThrottle!=null && powerThrottle.getLevel()!=PowerThrottle.LEVEL_NONE) text += " (" + powerThrottle.describe() + ")";
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setContentTitle("ZKMagic Wallpaper")
+                .setContentText(text)
+                .setSmallIcon(R.drawable.ic_launcher_foreground)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+
+    /**
+     * Replace the service notification with the current state
+     */
+    private void updateNotification() {
+        NotificationManager manager=getSystemService(NotificationManager.class);
+        if (manager!=null) manager.notify(1, buildNotification());
+    }
+
+    /**
+     * Start the rotation once the start configuration is read. When the system restarts the
+     * service on its own, the configuration is the saved one: the previous position and image
+     * list snapshot are restored on the render thread and the next image waits for the tick the
+     * previous run had scheduled, so that the restart decodes nothing. A start from the app
+     * shows its first image immediately, even with an unchanged configuration.
+     *
+     * @param stickyRestart True if the system restarted the service without an intent
+     */
+    private void startRotation(boolean stickyRestart) {
+        if (stickyRestart && lastChangeTime>0 && savedScanConf.equals(buildScanConf())) {
+            renderExecutor.execute(this::restoreRotation);
+            scheduleChange(ChangeSchedule.resumeDelayMillis(lastChangeTime, System.currentTimeMillis(), changeIntervalMillis()));
+        } else {
+            requestChange();
+            scheduleNextChange();
+        }
+    }
+
+    /**
+     * Load the saved image list and position without rendering. Must be called on the render thread.
+     */
+    private void restoreRotation() {
+        currentScanConf=buildScanConf();
+        long scanStart = PipelineMetrics.start();
+        loadImagesFromFolder();
+        metrics.record(PipelineMetrics.STAGE_SCAN, scanStart);
+        currentIndex=savedIndex;
+        publishUpdateUI(WallpaperState.ACTION_CHANGE_WP);
+    }
+
+    /**
+     * Save the rotation position after a change, to resume from it after a restart.
+     * Must be called on the render thread.
+     */
+    private void saveRotation() {
+        lastChangeTime=System.currentTimeMillis();
+        SharedPreferences sharedConf = getSharedPreferences(CONFIG_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedConf.edit();
+        editor.putInt("currentIndex", currentIndex);
+        editor.putString("currentScanConf", currentScanConf);
+        editor.putLong("lastChangeTime", lastChangeTime);
+        editor.apply();
+    }
+
+    /**
+     * Schedule the next periodic change after a full interval
+     */
+    private void scheduleNextChange() {
+        scheduleChange(changeIntervalMillis());
+    }
+
+    /**
+     * @return Configured interval, stretched while the device is throttled
+     */
+    private long changeIntervalMillis() {
+        return powerThrottle.stretchInterval(ChangeSchedule.intervalMillis(intervalSeconds));
+    }
+
+    /**
+     * Schedule a periodic change after the given delay
+     *
+     * @param delayMillis Delay of the change
+     */
+    private void scheduleChange(long delayMillis) {
+        nextChangeTime=SystemClock.elapsedRealtime() + delayMillis;
+        armChangeTimer();
+    }
+
+    /**
+     * Arm the timer of the next change for the current screen state. With the screen on a handler
+     * tick keeps the interval, the system stretches any alarm window to at least ten minutes.
+     * With the screen off an inexact alarm that does not wake the device is enough, and in screen
+     * aware mode no timer runs at all: the change due meanwhile is collected when the screen is back.
+     */
+    private void armChangeTimer() {
+        handler.removeCallbacks(changeTick);
+        alarmManager.cancel(changeAlarm);
+        if (nextChangeTime==0) return;
+        if (powerManager.isInteractive()) {
+            handler.postDelayed(changeTick, Math.max(0, nextChangeTime - SystemClock.elapsedRealtime()));
+        } else if (!changeSchedule.isScreenAware()) {
+            alarmManager.setWindow(AlarmManager.ELAPSED_REALTIME, nextChangeTime,
+                    ChangeSchedule.windowMillis(changeIntervalMillis()), "zkmagicwp:change", changeAlarm, handler);
+        }
     }
 
     /**
-     * Create update ui intent
+     * Deliver as a screen off tick the change that fell due while no timer ran in screen aware mode
+     */
+    private void collectMissedTick() {
+        if (changeSchedule.isScreenAware() && nextChangeTime>0 && SystemClock.elapsedRealtime()>=nextChangeTime) {
+            nextChangeTime=0;
+            changeSchedule.onTick(false);
+        }
+    }
+
+    /**
+     * Apply the change collapsing the ticks missed while the screen was off and restart the schedule
+     */
+    private void applyMissedChange() {
+        requestChange();
+        scheduleNextChange();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        metrics.dump(writer, bitmapPool);
+        memoryBudget.dump(writer);
+        powerThrottle.dump(writer);
+        writer.printf(Locale.ROOT, "Source cache: %d hits, %d misses, %d KB retained%n",
+                sourceCache.getHits(), sourceCache.getMisses(), sourceCache.getCurrentBytes()/1024);
+        if (badImages!=null) writer.printf(Locale.ROOT, "Bad images skipped until changed: %d%n", badImages.size());
+    }
+
+    /**
+     * Count a decode failure
      *
-     * @return Update ui intent
+     * @param path Image that cannot be decoded
+     * @return Exception to throw
      */
-    private Intent buildUpdateUI(String lastAction) {
-        Intent broadcastIntent = new Intent();
-        broadcastIntent.setAction(ACTION_UPDATE_UI);
-        if (!images.isEmpty()) {
-            broadcastIntent.putExtra("currentImage", images.get(currentIndex - 1));
+    private DecodeFailureException decodeFailure(String path) {
+        metrics.count(PipelineMetrics.DECODE_FAILURE);
+        return new DecodeFailureException(path);
+    }
+
+    /**
+     * Record an image that failed to decode, to skip it until it changes.
+     * Must be called on the render thread.
+     *
+     * @param path Image file path or content uri
+     */
+    private void addBadImage(String path) {
+        badImages.add(path, images.lastModified(path), images.length(path));
+        badImages.save();
+    }
+
+    /**
+     * Check if an image failed to decode and did not change since
+     *
+     * @param path Image file path or content uri
+     * @return True to skip the image
+     */
+    private boolean isBadImage(String path) {
+        return badImages.contains(path, images.lastModified(path), images.length(path));
+    }
+
+    /**
+     * Queue a periodic change to the next image.
+     * The request is dropped if a change is already queued or running.
+     */
+    private void requestChange() {
+        synchronized (navigationLock) {
+            if (isChanging.get()) return;
+            pendingMove=1;
+            queueNavigation();
         }
-        broadcastIntent.putExtra("intervalSeconds", String.valueOf(intervalSeconds));
-        broadcastIntent.putExtra("changeMode", changeMode);
-        broadcastIntent.putExtra("wpCenterMode", wpCenterMode);
-        broadcastIntent.putExtra("folderImages", folderPath);
-        broadcastIntent.putExtra("lastAction", lastAction);
-        return broadcastIntent;
     }
 
     /**
-     * Performs wallpaper change
+     * Queue a relative move requested by the user. The moves arriving before the render
+     * thread picks them up are merged into one target, and a render for an older target is cancelled.
+     *
+     * @param move Number of images to move, negative to go back
+     */
+    private void requestMove(int move) {
+        synchronized (navigationLock) {
+            pendingMove+=move;
+            queueNavigation();
+        }
+    }
+
+    /**
+     * Queue a move to a given image, replacing the moves not yet picked up
+     *
+     * @param index Image position, starting from 0
+     */
+    private void requestSeek(int index) {
+        synchronized (navigationLock) {
+            pendingSeek=index;
+            pendingMove=0;
+            queueNavigation();
+        }
+    }
+
+    /**
+     * Mark the work in flight as stale if it does not lead to the queued target and
+     * make sure the render thread will pick up the request. Must hold navigationLock.
+     */
+    private void queueNavigation() {
+        // The prefetch of the next image is still good for a single move forward
+        if (navigationRunning || pendingSeek>=0 || pendingMove!=1) navigationGeneration++;
+        isChanging.set(true);
+        if (navigationQueued) return;
+        navigationQueued=true;
+        renderExecutor.execute(this::runNavigation);
+    }
+
+    /**
+     * Take the queued navigation and render its target. Must be called on the render thread.
+     */
+    private void runNavigation() {
+        int move;
+        int seek;
+        synchronized (navigationLock) {
+            move=pendingMove;
+            seek=pendingSeek;
+            pendingMove=0;
+            pendingSeek=-1;
+            navigationQueued=false;
+            navigationRunning=true;
+            renderGeneration=navigationGeneration;
+        }
+        try {
+            if (seek>=0 || move!=1) discardPrefetchedFrame();
+            // A seek names a list image, the rotation continues from its shuffled position
+            if (seek>=0 && shuffle && seek<images.size()) seek=getShuffleOrder().positionOf(seek);
+            // changeWallpaper() moves to the image following currentIndex
+            currentIndex=ImageOrder.target(currentIndex, move, seek, images.size()) - 1;
+            changeWallpaper();
+        } finally {
+            synchronized (navigationLock) {
+                navigationRunning=false;
+                if (!navigationQueued) isChanging.set(false);
+            }
+        }
+    }
+
+    /**
+     * Stop the running render if a newer request made its target stale
+     *
+     * @throws CancellationException If the render is stale
+     */
+    private void checkCancelled() {
+        if (renderGeneration!=navigationGeneration) throw new CancellationException("Render superseded");
+    }
+
+    /**
+     * Build the state from the render state and deliver it to the listeners on the main thread.
+     * Nothing is built when no client is subscribed. Must be called on the render thread.
+     *
+     * @param lastAction Action that caused the update
+     */
+    private void publishUpdateUI(String lastAction) {
+        if (stateListeners.isEmpty()) return;
+        WallpaperState state=buildUpdateUI(lastAction);
+        handler.post(() -> {
+            for (StateListener listener : stateListeners) listener.onStateChanged(state);
+        });
+    }
+
+    /**
+     * Create the state snapshot
+     *
+     * @return Current state
+     */
+    private WallpaperState buildUpdateUI(String lastAction) {
+        // A restored position may be past the end while the list is scanned again
+        String currentImage=currentIndex>0 && currentIndex<=images.size() ? imageAt(currentIndex) : null;
+        return new WallpaperState(currentImage, intervalSeconds, changeMode, wpCenterMode,
+                folderPath, recursiveScan, useMediaStore, shuffle, pixelFormat,
+                imageExtensions, prefetchEnabled, screenAwareScheduling, useCropHints, lastAction, metrics.summary());
+    }
+
+    /**
+     * @return Folder and scan options identifying the image list
+     */
+    private String buildScanConf() {
+        return folderPath + "|" + recursiveScan + "|" + imageExtensions + "|" + useMediaStore;
+    }
+
+    /**
+     * Performs wallpaper change: scan, decode, compose and apply.
+     * Must be called on the render thread.
      */
     private void changeWallpaper() {
-        WallpaperManager wallpaperManager = WallpaperManager.getInstance(getApplicationContext());
-        Configuration configuration = getResources().getConfiguration();
-        if (isChanging) return;
+        changeWallpaper(MAX_SKIPPED_FAILURES);
+    }
+
+    /**
+     * Performs wallpaper change, moving on to the following image when one fails to decode
+     *
+     * @param retries Following images still to try after a decode failure
+     */
+    private void changeWallpaper(int retries) {
+        long changeStart = PipelineMetrics.start();
+        if (memoryBudget.relax(SystemClock.elapsedRealtime())) applyMemoryBudget();
         try {
-            isChanging=true;
-            // Check if folder path changed
-            if (!currentFolderPath.equalsIgnoreCase(folderPath)) {
+            // Check if folder path or scan options changed, or if the media library permission was granted since the load
+            String scanConf=buildScanConf();
+            if (!currentScanConf.equals(scanConf) || (images==mediaSource && mediaSource.isAccessDenied())) {
                 // Reload images from new path
-                currentFolderPath=folderPath;
+                currentScanConf=scanConf;
+                long scanStart = PipelineMetrics.start();
                 loadImagesFromFolder();
+                metrics.record(PipelineMetrics.STAGE_SCAN, scanStart);
+                discardPrefetchedFrame();
             }
             // Update index for next image
-            currentIndex=getNextImageIndex();
+            currentIndex=checkImageIndex(getNextImageIndex());
+            int homeIndex=changeMode==CHANGE_BOTH ? checkImageIndex(getNextImageIndex()) : currentIndex;
+            images.save();
+            badImages.save();
             // Send ui update signal
-            Intent broadcastIntent=buildUpdateUI("changeWP");
-            sendBroadcast(broadcastIntent);
+            publishUpdateUI(WallpaperState.ACTION_CHANGE_WP);
 
-            if (images.isEmpty()) return;
+            if (images.isEmpty()) {
+                // Show the first image found by the running scan
+                waitingForImages=images.isScanning();
+                return;
+            }
 
-            // Calculate vertical display size
-            DisplayMetrics displayMetrics = new DisplayMetrics();
-            WindowManager wm = (WindowManager) getApplicationContext().getSystemService(Context.WINDOW_SERVICE);
-            wm.getDefaultDisplay().getMetrics(displayMetrics);
-            int screenWidth = displayMetrics.widthPixels;
-            int screenHeight = displayMetrics.heightPixels;
-            if (configuration.orientation==Configuration.ORIENTATION_LANDSCAPE) {
-                screenWidth = displayMetrics.heightPixels;
-                screenHeight = displayMetrics.widthPixels;
+            int[] screenSize = getScreenSize();
+            String lockImage = imageAt(currentIndex);
+            String homeImage = imageAt(homeIndex);
+            // Use the frame prepared after the previous change if it is still valid
+            RenderedFrame frame = prefetchedFrame;
+            prefetchedFrame = null;
+            if (frame==null || !frame.matches(lockImage, homeImage, screenSize[0], screenSize[1], changeMode, wpCenterMode, useCropHints)) {
+                if (frame!=null) frame.release(bitmapPool);
+                if (prefetchEnabled) metrics.count(PipelineMetrics.PREFETCH_MISS);
+                frame = renderFrame(lockImage, homeImage, screenSize[0], screenSize[1]);
+            } else {
+                metrics.count(PipelineMetrics.PREFETCH_HIT);
             }
+            boolean applied = false;
+            try {
+                checkCancelled();
+                applyFrame(frame);
+                applied = true;
+            } finally {
+                if (!applied) frame.release(bitmapPool);
+            }
+            // New bitmaps were applied as rendered, their lossless cache entry is written afterwards
+            storeAppliedFrame(frame);
+            appliedScreenSize = screenSize;
+            saveRotation();
+            metrics.record(PipelineMetrics.STAGE_CHANGE, changeStart);
+
+            // Prepare the next frame while waiting for the next change
+            if (prefetchEnabled) renderExecutor.execute(this::prefetchNextFrame);
+        } catch (CancellationException e) {
+            // A newer request is queued behind this one
+            metrics.count(PipelineMetrics.CANCELLED);
+        } catch (DecodeFailureException e) {
+            metrics.count(PipelineMetrics.CHANGE_FAILURE);
+            Log.e("Error", "Wallpaper change error: " + e.getMessage());
+            addBadImage(e.path);
+            // Show the following image now rather than keeping the old one for a whole interval
+            if (retries>0) changeWallpaper(retries - 1);
+        } catch (Exception e) {
+            metrics.count(PipelineMetrics.CHANGE_FAILURE);
+            Log.e("Error", "Wallpaper change error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Render in advance the frame for the image that the next change will show.
+     * Must be called on the render thread.
+     */
+    private void prefetchNextFrame() {
+        if (images.isEmpty() || isChanging.get() || !memoryBudget.allowPrefetch() || !powerThrottle.allowPrefetch()) return;
+        renderGeneration=navigationGeneration;
+        try {
+            int[] screenSize = getScreenSize();
+            // Same images as the next change, past the ones that failed to decode
+            int nextIndex = checkImageIndex(getNextImageIndex());
+            int homeIndex = changeMode==CHANGE_BOTH ? checkImageIndex(getNextImageIndex(nextIndex)) : nextIndex;
+            if (images.isEmpty()) return;
+            String lockImage = imageAt(nextIndex);
+            String homeImage = imageAt(homeIndex);
+            if (prefetchedFrame!=null && prefetchedFrame.matches(lockImage, homeImage, screenSize[0], screenSize[1], changeMode, wpCenterMode, useCropHints)) return;
+            discardPrefetchedFrame();
+            RenderedFrame frame = renderFrame(lockImage, homeImage, screenSize[0], screenSize[1]);
+            // Waiting for the next change as files rather than bitmaps
+            storeFrame(frame);
+            prefetchedFrame = frame;
+        } catch (CancellationException e) {
+            // A navigation request needs the render thread
+            metrics.count(PipelineMetrics.CANCELLED);
+        } catch (DecodeFailureException e) {
+            metrics.count(PipelineMetrics.PREFETCH_FAILURE);
+            Log.e("Error", "Wallpaper prefetch error: " + e.getMessage());
+            addBadImage(e.path);
+        } catch (Exception e) {
+            metrics.count(PipelineMetrics.PREFETCH_FAILURE);
+            Log.e("Error", "Wallpaper prefetch error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Release the prefetched frame, if any.
+     * Must be called on the render thread.
+     */
+    private void discardPrefetchedFrame() {
+        if (prefetchedFrame!=null) {
+            prefetchedFrame.release(bitmapPool);
+            prefetchedFrame = null;
+        }
+    }
+
+    /**
+     * Calculate vertical display size
+     *
+     * @return Screen width and height
+     */
+    private int[] getScreenSize() {
+        Configuration configuration = getResources().getConfiguration();
+        DisplayMetrics displayMetrics = new DisplayMetrics();
+        WindowManager wm = (WindowManager) getApplicationContext().getSystemService(Context.WINDOW_SERVICE);
+        wm.getDefaultDisplay().getMetrics(displayMetrics);
+        int screenWidth = displayMetrics.widthPixels;
+        int screenHeight = displayMetrics.heightPixels;
+        if (configuration.orientation==Configuration.ORIENTATION_LANDSCAPE) {
+            screenWidth = displayMetrics.heightPixels;
+            screenHeight = displayMetrics.widthPixels;
+        }
+        return new int[] {screenWidth, screenHeight};
+    }
 
-            //////////////////////////////
-            // CHANGE LOCK SCREEN IMAGE //
-            //////////////////////////////
-            if (changeMode==CHANGE_LOCKSCREEN || changeMode==CHANGE_BOTH) {
-                // Read image from disk
-                Bitmap bitmap = BitmapFactory.decodeFile(images.get(currentIndex - 1));
-                // Resize the image
-                double newWidth = ((double) screenHeight / bitmap.getHeight()) * bitmap.getWidth();
-                if (newWidth < screenWidth) newWidth = screenWidth;
-                bitmap = resizeBitmap(bitmap, (int) newWidth, screenHeight);
-                // Create a new centered image
-                Bitmap finalBitmap = Bitmap.createBitmap(screenWidth, screenHeight, Bitmap.Config.ARGB_8888);
-                Canvas canvas = new Canvas(finalBitmap);
-                int x = (screenWidth - bitmap.getWidth()) / 2;
-                int y = 0;
-                if (bitmap.getHeight() < screenHeight) {
-                    y = (screenHeight - bitmap.getHeight()) / 2;
+    /**
+     * Decode and compose the bitmaps required by the current change mode.
+     * Frames already rendered with the same parameters are taken from the disk cache,
+     * new ones are kept as bitmaps with the key to store them under once applied
+     * (see {@link #storeFrame(RenderedFrame)}). When both images must be rendered
+     * the wallpaper is rendered on the decode thread while the lock screen renders here.
+     *
+     * @param lockImage Lock screen image path
+     * @param homeImage Wallpaper image path
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @return Rendered frame ready to be applied
+     */
+    @NonNull
+    private RenderedFrame renderFrame(String lockImage, String homeImage, int screenWidth, int screenHeight) {
+        RenderedFrame frame = new RenderedFrame(lockImage, homeImage, screenWidth, screenHeight, changeMode, wpCenterMode, useCropHints);
+        boolean withLock = frame.changeMode==CHANGE_LOCKSCREEN || frame.changeMode==CHANGE_BOTH;
+        boolean withHome = frame.changeMode==CHANGE_WALLPAPER || frame.changeMode==CHANGE_BOTH;
+        // Scaled images kept for crop hints are different files than composed frames
+        // Compact frames are cached apart so that switching back does not keep their reduced colors
+        String format = pixelFormat==PIXEL_FORMAT_COMPACT ? "-565" : "";
+        String lockKey = withLock ? buildFrameKey(lockImage, (frame.cropHints ? "lock-scaled" : "lock") + format, screenWidth, screenHeight, 2) : null;
+        String homeKey = withHome ? buildFrameKey(homeImage, (frame.cropHints ? "home-scaled" : "home") + format, screenWidth, screenHeight, frame.wpCenterMode) : null;
+        // Renders decoded with less detail than the screen needs, under memory pressure or throttling,
+        // are not cached: the full quality frame is rendered again once the device recovers
+        AtomicBoolean homeReduced = new AtomicBoolean(false);
+        Future<Bitmap> homeRender = null;
+        try {
+            if (withLock) frame.lockFile = getCachedFrame(lockKey);
+            if (withHome) frame.homeFile = getCachedFrame(homeKey);
+            if (withHome && frame.homeFile==null && withLock && frame.lockFile==null && memoryBudget.allowParallelRender()) {
+                // Two independent images: render the wallpaper on the decode thread meanwhile
+                homeRender = decodeExecutor.submit(() -> {
+                    reducedDecode.set(Boolean.FALSE);
+                    Bitmap bitmap = renderWithinBudget(homeImage, screenWidth, screenHeight, frame.wpCenterMode, false, frame.cropHints);
+                    homeReduced.set(reducedDecode.get());
+                    return bitmap;
+                });
+            }
+            if (withLock && frame.lockFile==null) {
+                reducedDecode.set(Boolean.FALSE);
+                Bitmap bitmap = homeRender!=null
+                        ? renderWithinBudget(lockImage, screenWidth, screenHeight, 2, true, frame.cropHints)
+                        : renderLockBitmap(lockImage, screenWidth, screenHeight, frame.cropHints);
+                frame.lockBitmap = bitmap;
+                frame.lockKey = reducedDecode.get() ? null : lockKey;
+                checkCancelled();
+            }
+            if (withHome && frame.homeFile==null) {
+                Bitmap bitmap;
+                boolean reduced;
+                if (homeRender!=null) {
+                    bitmap = awaitRender(homeRender);
+                    homeRender = null;
+                    reduced = homeReduced.get();
+                } else {
+                    reducedDecode.set(Boolean.FALSE);
+                    bitmap = renderHomeBitmap(homeImage, screenWidth, screenHeight, frame.wpCenterMode, frame.cropHints);
+                    reduced = reducedDecode.get();
                 }
-                canvas.drawBitmap(bitmap, x, y, null);
-                // Set new image
-                wallpaperManager.setBitmap(finalBitmap, null, true, WallpaperManager.FLAG_LOCK);
+                frame.homeBitmap = bitmap;
+                frame.homeKey = reduced ? null : homeKey;
             }
+        } catch (RuntimeException e) {
+            // A wallpaper render still running is left to complete on its own
+            if (homeRender!=null) homeRender.cancel(false);
+            frame.release(bitmapPool);
+            throw e;
+        }
+        return frame;
+    }
 
-            ////////////////////////////
-            // CHANGE WALLPAPER IMAGE //
-            ////////////////////////////
-            if (changeMode==CHANGE_WALLPAPER || changeMode==CHANGE_BOTH) {
-                // Read image from disk
-                int nextIndex=currentIndex;
-                if (changeMode==CHANGE_BOTH) nextIndex=getNextImageIndex();
-                Bitmap bitmap = BitmapFactory.decodeFile(images.get(nextIndex - 1));
-                // Resize the image
-                double newWidth = ((double) screenHeight / bitmap.getHeight()) * bitmap.getWidth();
-                if (newWidth < screenWidth) newWidth = screenWidth;
-                bitmap = resizeBitmap(bitmap, (int) newWidth, screenHeight);
-                if (wpCenterMode>1) {
-                    // Create a new centered image
-                    Bitmap appBitmap = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
-                    Canvas canvas = new Canvas(appBitmap);
-                    int x = (screenWidth - bitmap.getWidth()) / wpCenterMode;
-                    int y = 0;
-                    if (bitmap.getHeight() < screenHeight) {
-                        y = (screenHeight - bitmap.getHeight()) / 2;
-                    }
-                    canvas.drawBitmap(bitmap, x, y, null);
-                    bitmap = appBitmap;
-                }
-                // Set new image
-                wallpaperManager.setBitmap(bitmap, null, true, WallpaperManager.FLAG_SYSTEM);
+    /**
+     * Write the newly rendered bitmaps of a frame to the disk cache and use the files
+     * instead, giving the bitmaps back to the pool. Reduced renders stay bitmaps.
+     *
+     * @param frame Rendered frame
+     */
+    private void storeFrame(@NonNull RenderedFrame frame) {
+        if (frame.lockKey!=null) {
+            frame.lockFile = frameCache.put(frame.lockKey, frame.lockBitmap);
+            frame.lockKey = null;
+            if (frame.lockFile!=null) {
+                bitmapPool.put(frame.lockBitmap);
+                frame.lockBitmap = null;
+            }
+        }
+        if (frame.homeKey!=null) {
+            frame.homeFile = frameCache.put(frame.homeKey, frame.homeBitmap);
+            frame.homeKey = null;
+            if (frame.homeFile!=null) {
+                bitmapPool.put(frame.homeBitmap);
+                frame.homeBitmap = null;
             }
+        }
+    }
 
-        } catch (Exception e) {
-            Log.e("Error", "Wallpaper change error: " + e.getMessage());
+    /**
+     * Store an applied frame in the disk cache on the decode thread, off the change path,
+     * then release it
+     *
+     * @param frame Applied frame
+     */
+    private void storeAppliedFrame(@NonNull RenderedFrame frame) {
+        if (frame.lockKey==null && frame.homeKey==null) {
+            frame.release(bitmapPool);
+            return;
+        }
+        try {
+            decodeExecutor.execute(() -> {
+                try {
+                    storeFrame(frame);
+                } finally {
+                    frame.release(bitmapPool);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Service stopping
+            frame.release(bitmapPool);
+        }
+    }
+
+    /**
+     * Look up a rendered frame in the disk cache, counting hits and misses
+     *
+     * @param key Frame key
+     * @return Cached frame file or null
+     */
+    @Nullable
+    private File getCachedFrame(String key) {
+        File file = frameCache.get(key);
+        metrics.count(file!=null ? PipelineMetrics.FRAME_CACHE_HIT : PipelineMetrics.FRAME_CACHE_MISS);
+        return file;
+    }
+
+    /**
+     * Render a frame once its estimated memory fits in the budget shared with the parallel render
+     *
+     * @param path Image file path or content uri
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @param centerMode Wallpaper centering mode, unused for the lock screen
+     * @param lockScreen True for the lock screen frame, false for the wallpaper frame
+     * @param cropHints Return the scaled image instead of composing the frame
+     * @return Rendered frame
+     */
+    private Bitmap renderWithinBudget(String path, int screenWidth, int screenHeight, int centerMode, boolean lockScreen, boolean cropHints) {
+        long bytes = estimateRenderBytes(path, screenWidth, screenHeight);
+        try {
+            renderBudget.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Render interrupted");
+        }
+        try {
+            return lockScreen ? renderLockBitmap(path, screenWidth, screenHeight, cropHints)
+                    : renderHomeBitmap(path, screenWidth, screenHeight, centerMode, cropHints);
         } finally {
-            isChanging=false;
+            renderBudget.release(bytes);
         }
     }
 
+    /**
+     * Estimate the peak memory of a render from the image size: the subsampled decode,
+     * the image scaled to the screen height and the composed frame
+     *
+     * @param path Image file path or content uri
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @return Estimated bytes
+     */
+    private long estimateRenderBytes(String path, int screenWidth, int screenHeight) {
+        long frameBytes = BitmapPool.byteCount(screenWidth, screenHeight, Bitmap.Config.ARGB_8888);
+        try (ParcelFileDescriptor pfd = openImage(path)) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor(), null, options);
+            if (options.outWidth<=0 || options.outHeight<=0) return frameBytes;
+            int targetWidth = FitGeometry.scaledWidth(options.outWidth, options.outHeight, screenWidth, screenHeight);
+            int inSampleSize = FitGeometry.sampleSize(options.outWidth, options.outHeight, targetWidth, screenHeight);
+            long bytesPerPixel = BitmapPool.byteCount(1, 1, decodeConfig(options.outMimeType));
+            return bytesPerPixel*FitGeometry.ceilDiv(options.outWidth, inSampleSize)*FitGeometry.ceilDiv(options.outHeight, inSampleSize)
+                    + 2*bytesPerPixel*targetWidth*screenHeight;
+        } catch (IOException | SecurityException e) {
+            return frameBytes;
+        }
+    }
+
+    /**
+     * Wait for a render running on the decode thread
+     *
+     * @param render Render result
+     * @return Rendered frame
+     */
+    private Bitmap awaitRender(Future<Bitmap> render) {
+        try {
+            return render.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Render interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Build the disk cache key of a rendered frame
+     *
+     * @param path Image file path
+     * @param target Lock screen or wallpaper
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @param centerMode Center mode used for the composition
+     * @return Frame key
+     */
+    @NonNull
+    private String buildFrameKey(String path, String target, int screenWidth, int screenHeight, int centerMode) {
+        return FrameDiskCache.buildKey(path, images.lastModified(path), images.length(path), target, screenWidth + "x" + screenHeight, centerMode);
+    }
+
+    /**
+     * Create the lock screen image centered on the screen
+     *
+     * @param path Image file path
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @param cropHints Return the scaled image, to be cropped by WallpaperManager, if wider than the screen
+     * @return Screen sized bitmap, or the scaled image with crop hints
+     */
+    @NonNull
+    private Bitmap renderLockBitmap(String path, int screenWidth, int screenHeight, boolean cropHints) {
+        if (pixelFormat==PIXEL_FORMAT_HARDWARE) {
+            // Scaled and cropped by the decoder, the frame is never drawn
+            Bitmap bitmap = decodeHardwareBitmap(path, screenWidth, screenHeight, true);
+            if (bitmap!=null) return bitmap;
+        }
+        Bitmap bitmap = getCachedSource(path, screenWidth, screenHeight);
+        if (bitmap==null) {
+            // Decode only the centered part that fits the screen
+            Bitmap region = decodeVisibleRegion(path, screenWidth, screenHeight, 2, true);
+            if (region!=null) return region;
+            // Read image from disk already scaled to the screen
+            bitmap = loadScaledSource(path, screenWidth, screenHeight);
+        }
+        if (cropHints) return bitmap;
+        // Create a new centered image
+        long composeStart = PipelineMetrics.start();
+        Bitmap finalBitmap = bitmapPool.obtain(screenWidth, screenHeight, frameConfig(bitmap));
+        Canvas canvas = new Canvas(finalBitmap);
+        int x = (screenWidth - bitmap.getWidth()) / 2;
+        int y = 0;
+        if (bitmap.getHeight() < screenHeight) {
+            y = (screenHeight - bitmap.getHeight()) / 2;
+        }
+        canvas.drawBitmap(bitmap, x, y, null);
+        bitmapPool.put(bitmap);
+        metrics.record(PipelineMetrics.STAGE_COMPOSE, composeStart);
+        return finalBitmap;
+    }
+
+    /**
+     * Create the wallpaper image, shifted according to the center mode
+     *
+     * @param path Image file path
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @param wpCenterMode Wallpaper center mode
+     * @param cropHints Return the scaled image, to be cropped by WallpaperManager, instead of shifting it
+     * @return Wallpaper bitmap
+     */
+    @NonNull
+    private Bitmap renderHomeBitmap(String path, int screenWidth, int screenHeight, int wpCenterMode, boolean cropHints) {
+        if (pixelFormat==PIXEL_FORMAT_HARDWARE && (cropHints || wpCenterMode<=1)) {
+            // The scaled image is applied as is, shifted frames still need a software canvas
+            Bitmap bitmap = decodeHardwareBitmap(path, screenWidth, screenHeight, false);
+            if (bitmap!=null) return bitmap;
+        }
+        Bitmap bitmap = getCachedSource(path, screenWidth, screenHeight);
+        if (cropHints) {
+            // The shift becomes the crop hint of the scaled image
+            return bitmap!=null ? bitmap : loadScaledSource(path, screenWidth, screenHeight);
+        }
+        if (bitmap==null && wpCenterMode>1) {
+            // Decode only the part left visible by the shift
+            Bitmap region = decodeVisibleRegion(path, screenWidth, screenHeight, wpCenterMode, false);
+            if (region!=null) return region;
+        }
+        // Read image from disk already scaled to the screen
+        if (bitmap==null) bitmap = loadScaledSource(path, screenWidth, screenHeight);
+        if (wpCenterMode>1) {
+            // Create a new centered image
+            long composeStart = PipelineMetrics.start();
+            Bitmap appBitmap = bitmapPool.obtain(bitmap.getWidth(), bitmap.getHeight(), frameConfig(bitmap));
+            Canvas canvas = new Canvas(appBitmap);
+            int x = (screenWidth - bitmap.getWidth()) / wpCenterMode;
+            int y = 0;
+            if (bitmap.getHeight() < screenHeight) {
+                y = (screenHeight - bitmap.getHeight()) / 2;
+            }
+            canvas.drawBitmap(bitmap, x, y, null);
+            bitmapPool.put(bitmap);
+            bitmap = appBitmap;
+            metrics.record(PipelineMetrics.STAGE_COMPOSE, composeStart);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Set the rendered bitmaps as lock screen and/or wallpaper
+     *
+     * @param frame Rendered frame
+     * @throws IOException If the wallpaper cannot be set
+     */
+    private void applyFrame(@NonNull RenderedFrame frame) throws IOException {
+        WallpaperManager wallpaperManager = WallpaperManager.getInstance(getApplicationContext());
+        //////////////////////////////
+        // CHANGE LOCK SCREEN IMAGE //
+        //////////////////////////////
+        long applyStart = PipelineMetrics.start();
+        if (frame.lockFile!=null) {
+            Rect crop = frame.cropHints ? cropHint(frameSize(frame.lockFile), frame.screenWidth, 2, true) : null;
+            setWallpaperStream(wallpaperManager, frame.lockFile, crop, WallpaperManager.FLAG_LOCK);
+        } else if (frame.lockBitmap!=null) {
+            Rect crop = frame.cropHints ? cropHint(new int[] {frame.lockBitmap.getWidth(), frame.lockBitmap.getHeight()}, frame.screenWidth, 2, true) : null;
+            wallpaperManager.setBitmap(frame.lockBitmap, crop, true, WallpaperManager.FLAG_LOCK);
+        }
+        if (frame.lockFile!=null || frame.lockBitmap!=null) metrics.record(PipelineMetrics.STAGE_APPLY, applyStart);
+        ////////////////////////////
+        // CHANGE WALLPAPER IMAGE //
+        ////////////////////////////
+        applyStart = PipelineMetrics.start();
+        if (frame.homeFile!=null) {
+            Rect crop = frame.cropHints ? cropHint(frameSize(frame.homeFile), frame.screenWidth, frame.wpCenterMode, false) : null;
+            setWallpaperStream(wallpaperManager, frame.homeFile, crop, WallpaperManager.FLAG_SYSTEM);
+        } else if (frame.homeBitmap!=null) {
+            Rect crop = frame.cropHints ? cropHint(new int[] {frame.homeBitmap.getWidth(), frame.homeBitmap.getHeight()}, frame.screenWidth, frame.wpCenterMode, false) : null;
+            wallpaperManager.setBitmap(frame.homeBitmap, crop, true, WallpaperManager.FLAG_SYSTEM);
+        }
+        if (frame.homeFile!=null || frame.homeBitmap!=null) metrics.record(PipelineMetrics.STAGE_APPLY, applyStart);
+    }
+
+    /**
+     * Stream an already rendered frame to the WallpaperManager without decoding it
+     *
+     * @param wallpaperManager Wallpaper manager
+     * @param file Rendered frame file
+     * @param crop Visible part of the frame or null for the whole frame
+     * @param which Lock screen or wallpaper flag
+     * @throws IOException If the wallpaper cannot be set
+     */
+    private static void setWallpaperStream(WallpaperManager wallpaperManager, File file, @Nullable Rect crop, int which) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            wallpaperManager.setStream(in, crop, true, which);
+        }
+    }
+
+    /**
+     * Compute the visible part of a scaled image with the same centering math used to
+     * compose the frames: the lock screen shows the centered screen width, the wallpaper
+     * everything right of the shift given by the center mode
+     *
+     * @param size Width and height of the scaled image
+     * @param screenWidth Screen width
+     * @param centerMode Divisor of the excess width giving the left edge, 2 to center
+     * @param lockScreen True for the lock screen, false for the wallpaper
+     * @return Crop hint or null if the whole image is visible
+     */
+    @Nullable
+    private static Rect cropHint(int[] size, int screenWidth, int centerMode, boolean lockScreen) {
+        int[] crop = FitGeometry.cropHint(size[0], size[1], screenWidth, centerMode, lockScreen);
+        return crop==null ? null : new Rect(crop[0], crop[1], crop[2], crop[3]);
+    }
+
+    /**
+     * Read the size of a frame file without decoding it
+     *
+     * @param file Frame file
+     * @return Width and height
+     */
+    private static int[] frameSize(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        return new int[] {options.outWidth, options.outHeight};
+    }
+
+    /**
+     * Remove from the index the images deleted since the last scan and skip the
+     * images that failed to decode, starting from the given position
+     *
+     * @param index Image index to check
+     * @return Index of the first existing image from the given one
+     */
+    private int checkImageIndex(int index) {
+        int skipped=0;
+        while (!images.isEmpty()) {
+            if (index>images.size()) index=1;
+            int listIndex=listIndexAt(index);
+            if (!images.exists(listIndex)) {
+                images.remove(listIndex);
+                continue;
+            }
+            // Images that failed to decode wait for a change of their file, unless all of them failed
+            if (skipped>=images.size() || !isBadImage(images.get(listIndex))) break;
+            metrics.count(PipelineMetrics.BAD_IMAGE_SKIPPED);
+            skipped++;
+            index++;
+        }
+        return index;
+    }
+
     /**
      * Calculate next image index
      *
      * @return Next image index
      */
     private int getNextImageIndex() {
-        int result = currentIndex + 1;
-        if (result>images.size()){
-            result=1;
-        }  else if (result<=0) {
-            result=1;
-            if (!images.isEmpty()) result=images.size();
+        return getNextImageIndex(currentIndex);
+    }
+
+    /**
+     * Calculate the image index following the given one
+     *
+     * @param fromIndex Starting index
+     * @return Next image index
+     */
+    private int getNextImageIndex(int fromIndex) {
+        return ImageOrder.next(fromIndex, images.size());
+    }
+
+    /**
+     * Image shown at a position of the rotation
+     *
+     * @param index Position, starting from 1
+     * @return Image path or content uri
+     */
+    private String imageAt(int index) {
+        return images.get(listIndexAt(index));
+    }
+
+    /**
+     * Map a position of the rotation to the list, through the shuffled order if enabled
+     *
+     * @param index Position, starting from 1
+     * @return List index, starting from 0
+     */
+    private int listIndexAt(int index) {
+        return shuffle ? getShuffleOrder().imageAt(index - 1) : index - 1;
+    }
+
+    /**
+     * Get the shuffled order of the current list. A list of another size gets a new order
+     * from the same seed, the order is computed on demand and nothing is copied per image.
+     *
+     * @return Shuffled order
+     */
+    private ShuffleOrder getShuffleOrder() {
+        int size=images.size();
+        if (shuffleOrder==null || shuffleOrder.size()!=size || shuffleOrder.seed()!=shuffleSeed) {
+            shuffleOrder=new ShuffleOrder(shuffleSeed, size);
+        }
+        return shuffleOrder;
+    }
+
+    /**
+     * Decode only the columns of an image visible in a frame, with the same result as the full
+     * decode followed by the compose step: the image is scaled to the screen height and shifted
+     * left by its excess width divided by the center mode. A wide panorama costs about a screen
+     * of pixels instead of the whole file.
+     *
+     * @param path Image file path or content uri
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @param centerMode Divisor of the excess width giving the shift, 2 to center the image
+     * @param screenFrame True for a frame of the screen size, false for a frame as wide as the scaled image
+     * @return Composed frame, or null if the whole image is visible or the format has no region decoder
+     */
+    @Nullable
+    private Bitmap decodeVisibleRegion(String path, int screenWidth, int screenHeight, int centerMode, boolean screenFrame) {
+        try (ParcelFileDescriptor pfd = openImage(path)) {
+            FileDescriptor fd = pfd.getFileDescriptor();
+            // Read image size only
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+            int srcWidth = options.outWidth;
+            int srcHeight = options.outHeight;
+            if (srcWidth<=0 || srcHeight<=0) return null;
+            // Same geometry as decodeScaledBitmap() and the compose step
+            FitGeometry geometry = FitGeometry.of(srcWidth, srcHeight, screenWidth, screenHeight, centerMode, screenFrame);
+            if (!geometry.isCropped()) return null;
+            // Source columns covering the visible part
+            Rect region = new Rect(geometry.sourceLeft(), 0, geometry.sourceRight(), srcHeight);
+            // Decode the subsampled region
+            Os.lseek(fd, 0, OsConstants.SEEK_SET);
+            BitmapRegionDecoder decoder = newRegionDecoder(pfd);
+            options.inJustDecodeBounds = false;
+            options.inPreferredConfig = decodeConfig(options.outMimeType);
+            options.inSampleSize = limitSampleSize(region.width(), srcHeight, options.inPreferredConfig,
+                    FitGeometry.sampleSize(region.width(), srcHeight, geometry.visibleRight() - geometry.visibleLeft(), screenHeight));
+            options.inMutable = true;
+            options.inBitmap = bitmapPool.get(FitGeometry.ceilDiv(region.width(), options.inSampleSize), FitGeometry.ceilDiv(srcHeight, options.inSampleSize), options.inPreferredConfig);
+            Bitmap sampled;
+            long decodeStart = PipelineMetrics.start();
+            try {
+                sampled = decoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap cannot hold this region, decode into a new one
+                if (options.inBitmap!=null) options.inBitmap.recycle();
+                options.inBitmap = null;
+                sampled = decoder.decodeRegion(region, options);
+            } finally {
+                decoder.recycle();
+            }
+            if (sampled==null) {
+                bitmapPool.put(options.inBitmap);
+                return null;
+            }
+            metrics.record(PipelineMetrics.STAGE_DECODE, decodeStart);
+            if (options.inBitmap==null) metrics.addAllocatedBytes(sampled.getAllocationByteCount());
+            if (renderGeneration!=navigationGeneration) {
+                bitmapPool.put(sampled);
+                checkCancelled();
+            }
+            // Scale the region to the screen height at its place in the frame
+            long scaleStart = PipelineMetrics.start();
+            Bitmap frame = bitmapPool.obtain(geometry.frameWidth, screenHeight, frameConfig(sampled));
+            Matrix matrix = new Matrix();
+            matrix.postScale((float) (region.width() * geometry.scaleX() / sampled.getWidth()), (float) screenHeight / sampled.getHeight());
+            matrix.postTranslate((float) (geometry.shift + region.left * geometry.scaleX()), 0);
+            new Canvas(frame).drawBitmap(sampled, matrix, scalePaint());
+            bitmapPool.put(sampled);
+            metrics.record(PipelineMetrics.STAGE_SCALE, scaleStart);
+            return frame;
+        } catch (IOException | ErrnoException | SecurityException e) {
+            // Not readable by the region decoder, use the full decode
+            return null;
         }
-        return result;
     }
 
     /**
-     * Resize an image
+     * Create a region decoder reading an open image
+     *
+     * @param pfd Image file descriptor, positioned at the start of the image
+     * @return Region decoder
+     * @throws IOException If the format is not supported by the region decoder
+     */
+    @NonNull
+    @SuppressWarnings("deprecation")
+    private static BitmapRegionDecoder newRegionDecoder(ParcelFileDescriptor pfd) throws IOException {
+        if (Build.VERSION.SDK_INT>=Build.VERSION_CODES.S) return BitmapRegionDecoder.newInstance(pfd);
+        // Android 11 only has the deprecated variant
+        return BitmapRegionDecoder.newInstance(pfd.getFileDescriptor(), false);
+    }
+
+    /**
+     * Get an image scaled to the screen height from the decoded image cache
+     *
+     * @param path Image file path or content uri
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @return Pooled bitmap owned by the caller, possibly shared with the cache, or null if not cached
+     */
+    @Nullable
+    private Bitmap getCachedSource(String path, int screenWidth, int screenHeight) {
+        long scaleStart = PipelineMetrics.start();
+        Bitmap bitmap = sourceCache.get(sourceKey(path), screenWidth, screenHeight);
+        if (bitmap!=null) metrics.record(PipelineMetrics.STAGE_SCALE, scaleStart);
+        return bitmap;
+    }
+
+    /**
+     * Read an image from disk scaled to the screen height and add it to the decoded image cache,
+     * once getCachedSource() missed it
+     *
+     * @param path Image file path or content uri
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @return Scaled bitmap owned by the caller, shared with the cache
+     * @throws DecodeFailureException If the image was read but cannot be decoded
+     */
+    @NonNull
+    private Bitmap loadScaledSource(String path, int screenWidth, int screenHeight) {
+        Bitmap bitmap = decodeScaledBitmap(path, screenWidth, screenHeight);
+        if (bitmap==null) throw decodeFailure(path);
+        if (!reducedDecode.get()) sourceCache.put(sourceKey(path), bitmap, screenWidth);
+        return bitmap;
+    }
+
+    /**
+     * Build the decoded image cache key. Images are identified by modification time and size,
+     * content uris keep their uri when the image is edited in place.
+     *
+     * @param path Image file path or content uri
+     * @return Cache key
+     */
+    @NonNull
+    private String sourceKey(String path) {
+        return path + "|" + images.lastModified(path) + "|" + images.length(path);
+    }
+
+    /**
+     * Read an image from disk directly at the size required to fill the screen height.
+     * Only the image bounds are read first, then the file is decoded subsampled with
+     * the largest power of two that keeps it above the target size and finally scaled
+     * to the exact size, so a full resolution copy is never held in memory.
+     * Decode and scale targets are taken from the bitmap pool.
+     *
+     * @param path Image file path or content uri
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @return Scaled bitmap or null if the file was opened but cannot be decoded
+     * @throws UncheckedIOException If the image cannot be opened, a failure worth retrying later
+     * @throws SecurityException If access to the image was revoked
+     */
+    @Nullable
+    private Bitmap decodeScaledBitmap(String path, int screenWidth, int screenHeight) {
+        try (ParcelFileDescriptor pfd = openImage(path)) {
+            return decodeScaledBitmap(pfd.getFileDescriptor(), screenWidth, screenHeight);
+        } catch (IOException e) {
+            // Storage not mounted, file being written... the image is not marked as bad
+            throw new UncheckedIOException("Error opening " + path, e);
+        }
+    }
+
+    /**
+     * Open an image file or content uri for reading
+     *
+     * @param image Image file path or content uri
+     * @return Open file descriptor
+     * @throws IOException If the image cannot be opened
+     */
+    @NonNull
+    private ParcelFileDescriptor openImage(String image) throws IOException {
+        if (image.startsWith("content:")) {
+            ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(Uri.parse(image), "r");
+            if (pfd==null) throw new IOException("No content for " + image);
+            return pfd;
+        }
+        return ParcelFileDescriptor.open(new File(image), ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Decode an open image directly at the size required to fill the screen height
+     *
+     * @param fd Image file descriptor, its position is not changed by the decoder
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @return Scaled bitmap or null if the file cannot be decoded
+     */
+    @Nullable
+    private Bitmap decodeScaledBitmap(FileDescriptor fd, int screenWidth, int screenHeight) {
+        // Read image size only
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFileDescriptor(fd, null, options);
+        if (options.outWidth<=0 || options.outHeight<=0) return null;
+        // Calculate final size
+        int targetWidth = FitGeometry.scaledWidth(options.outWidth, options.outHeight, screenWidth, screenHeight);
+        // Decode subsampled image
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = decodeConfig(options.outMimeType);
+        options.inSampleSize = limitSampleSize(options.outWidth, options.outHeight, options.inPreferredConfig,
+                FitGeometry.sampleSize(options.outWidth, options.outHeight, targetWidth, screenHeight));
+        options.inMutable = true;
+        options.inBitmap = bitmapPool.get(FitGeometry.ceilDiv(options.outWidth, options.inSampleSize), FitGeometry.ceilDiv(options.outHeight, options.inSampleSize), options.inPreferredConfig);
+        Bitmap sampled;
+        long decodeStart = PipelineMetrics.start();
+        try {
+            sampled = BitmapFactory.decodeFileDescriptor(fd, null, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap cannot hold this image, decode into a new one
+            if (options.inBitmap!=null) options.inBitmap.recycle();
+            options.inBitmap = null;
+            sampled = BitmapFactory.decodeFileDescriptor(fd, null, options);
+        }
+        if (sampled==null) {
+            bitmapPool.put(options.inBitmap);
+            return null;
+        }
+        metrics.record(PipelineMetrics.STAGE_DECODE, decodeStart);
+        if (options.inBitmap==null) metrics.addAllocatedBytes(sampled.getAllocationByteCount());
+        if (renderGeneration!=navigationGeneration) {
+            bitmapPool.put(sampled);
+            checkCancelled();
+        }
+        if (sampled.getWidth()==targetWidth && sampled.getHeight()==screenHeight) return sampled;
+        // Resize to the exact size
+        long scaleStart = PipelineMetrics.start();
+        Bitmap bitmap = resizeBitmap(sampled, targetWidth, screenHeight);
+        bitmapPool.put(sampled);
+        metrics.record(PipelineMetrics.STAGE_SCALE, scaleStart);
+        return bitmap;
+    }
+
+    /**
+     * Resize an image into a bitmap taken from the pool
      *
      * @param image Bitmap to resize
      * @param newWidth New width
@@ -315,8 +1598,107 @@ public class WallpaperService extends Service {
         Matrix matrix = new Matrix();
         // resize the bit map
         matrix.postScale(scaleWidth, scaleHeight);
-        // recreate the new Bitmap
-        return Bitmap.createBitmap(image, 0, 0, width, height, matrix, false);
+        // draw into a reused bitmap
+        Bitmap resized = bitmapPool.obtain(newWidth, newHeight, frameConfig(image));
+        Canvas canvas = new Canvas(resized);
+        canvas.drawBitmap(image, matrix, scalePaint());
+        return resized;
+    }
+
+    /**
+     * Decode an image into a hardware bitmap already scaled to the screen height and,
+     * for a screen frame, cropped to its centered part. The pixels stay in graphics
+     * memory: the bitmap can be compressed or applied but not drawn on a software canvas.
+     *
+     * @param path Image file path or content uri
+     * @param screenWidth Screen width
+     * @param screenHeight Screen height
+     * @param screenFrame True to crop to the screen, false for the whole scaled image
+     * @return Hardware bitmap or null if ImageDecoder cannot decode the image
+     */
+    @Nullable
+    private Bitmap decodeHardwareBitmap(String path, int screenWidth, int screenHeight, boolean screenFrame) {
+        ImageDecoder.Source source = path.startsWith("content:")
+                ? ImageDecoder.createSource(getContentResolver(), Uri.parse(path))
+                : ImageDecoder.createSource(new File(path));
+        long decodeStart = PipelineMetrics.start();
+        Bitmap bitmap;
+        try {
+            bitmap = ImageDecoder.decodeBitmap(source, (decoder, info, src) -> {
+                // Same geometry as decodeScaledBitmap() and the lock screen compose step
+                FitGeometry geometry = FitGeometry.of(info.getSize().getWidth(), info.getSize().getHeight(), screenWidth, screenHeight, 2, screenFrame);
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_HARDWARE);
+                decoder.setTargetSize(geometry.scaledWidth, screenHeight);
+                if (screenFrame && geometry.isCropped()) {
+                    decoder.setCrop(new Rect(geometry.visibleLeft(), 0, geometry.visibleRight(), screenHeight));
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            Log.e("Error", "Hardware decode error " + path + ": " + e.getMessage());
+            return null;
+        }
+        metrics.record(PipelineMetrics.STAGE_DECODE, decodeStart);
+        if (renderGeneration!=navigationGeneration) {
+            bitmap.recycle();
+            checkCancelled();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Paint scaling images to the screen, bilinear unless the device is throttled
+     *
+     * @return Paint
+     */
+    @NonNull
+    private Paint scalePaint() {
+        return new Paint(powerThrottle.filterBitmap() ? Paint.FILTER_BITMAP_FLAG : 0);
+    }
+
+    /**
+     * Raise a sample size by the throttling factor, then until the decoded bitmap fits the largest
+     * decode allowed by the memory budget. The result is still scaled to the screen, only with less detail,
+     * and the render is flagged so that it is not cached.
+     *
+     * @param width Width of the decoded image or region
+     * @param height Height of the decoded image or region
+     * @param config Decode pixel format
+     * @param sampleSize Sample size chosen for the screen size
+     * @return Sample size to use
+     */
+    private int limitSampleSize(int width, int height, @NonNull Bitmap.Config config, int sampleSize) {
+        int limited = sampleSize * powerThrottle.sampleSizeFactor();
+        long maxBytes = memoryBudget.maxDecodeBytes();
+        long bytesPerPixel = BitmapPool.byteCount(1, 1, config);
+        while (limited<Math.max(width, height)
+                && bytesPerPixel*FitGeometry.ceilDiv(width, limited)*FitGeometry.ceilDiv(height, limited)>maxBytes) {
+            limited*=2;
+        }
+        if (limited>sampleSize) reducedDecode.set(Boolean.TRUE);
+        return limited;
+    }
+
+    /**
+     * Pixel format of a software decode
+     *
+     * @param mimeType Image type reported by the bounds decode
+     * @return RGB_565 for JPEG images in compact mode, ARGB_8888 otherwise
+     */
+    @NonNull
+    private Bitmap.Config decodeConfig(@Nullable String mimeType) {
+        return pixelFormat==PIXEL_FORMAT_COMPACT && "image/jpeg".equals(mimeType) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Pixel format of a scale or compose target: RGB_565 only for a RGB_565 source,
+     * ARGB_8888 for any other format, including wide gamut decodes
+     *
+     * @param source Bitmap drawn into the target
+     * @return Target pixel format
+     */
+    @NonNull
+    private static Bitmap.Config frameConfig(@NonNull Bitmap source) {
+        return source.getConfig()==Bitmap.Config.RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
     }
 
     private void createNotificationChannel() {
@@ -332,25 +1714,42 @@ public class WallpaperService extends Service {
     }
 
     /**
-     * Upload image file names
+     * Upload image file names, from the persisted index if still valid
+     * or with a background scan, and start following the folder changes
      */
     private void loadImagesFromFolder() {
-        images.clear();
-        try {
-            File folder = new File(currentFolderPath);
-            if (folder.exists()) {
-                File[] files = folder.listFiles();
-
-                if (files != null) {
-                    for (File file : files) {
-                        if (file.isFile() && file.getName().endsWith(".jpg")) {
-                            images.add(file.getAbsolutePath());
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            Log.e("Error", "Error reading files:" + e.getMessage());
+        images.stopWatching();
+        if (useMediaStore) {
+            images = mediaSource;
+            mediaSource.load(getMediaRelativePath(folderPath), recursiveScan, renderExecutor, this::onImagesAdded);
+        } else {
+            images = folderIndex;
+            folderIndex.load(folderPath, recursiveScan, ScanFilter.parseExtensions(imageExtensions), renderExecutor, this::onImagesAdded);
+        }
+    }
+
+    /**
+     * Convert a folder path to the media library relative path
+     *
+     * @param folderPath Absolute folder path
+     * @return Path relative to the storage root, ending with a slash
+     */
+    @NonNull
+    private static String getMediaRelativePath(String folderPath) {
+        String root = Environment.getExternalStorageDirectory().getAbsolutePath();
+        String relativePath = folderPath.startsWith(root) ? folderPath.substring(root.length()) : folderPath;
+        while (relativePath.startsWith("/")) relativePath = relativePath.substring(1);
+        return relativePath.endsWith("/") ? relativePath : relativePath + "/";
+    }
+
+    /**
+     * Called on the render thread when the running scan adds images
+     */
+    private void onImagesAdded() {
+        if (waitingForImages) {
+            waitingForImages=false;
+            discardPrefetchedFrame();
+            requestChange();
         }
     }
 
@@ -364,6 +1763,15 @@ public class WallpaperService extends Service {
         editor.putInt("intervalSeconds", intervalSeconds);
         editor.putInt("changeMode", changeMode);
         editor.putInt("wpCenterMode", wpCenterMode);
+        editor.putBoolean("recursiveScan", recursiveScan);
+        editor.putString("imageExtensions", imageExtensions);
+        editor.putBoolean("useMediaStore", useMediaStore);
+        editor.putBoolean("shuffle", shuffle);
+        editor.putInt("pixelFormat", pixelFormat);
+        editor.putLong("shuffleSeed", shuffleSeed);
+        editor.putBoolean("prefetchEnabled", prefetchEnabled);
+        editor.putBoolean("screenAwareScheduling", screenAwareScheduling);
+        editor.putBoolean("useCropHints", useCropHints);
         editor.apply();
     }
 
@@ -376,6 +1784,85 @@ public class WallpaperService extends Service {
         intervalSeconds=sharedConf.getInt("intervalSeconds", DEFAULT_INTERVAL_SECONDS);
         changeMode=sharedConf.getInt("changeMode", CHANGE_LOCKSCREEN);
         wpCenterMode=sharedConf.getInt("wpCenterMode", 2);
+        recursiveScan=sharedConf.getBoolean("recursiveScan", false);
+        imageExtensions=sharedConf.getString("imageExtensions", DEFAULT_IMAGE_EXTENSIONS);
+        useMediaStore=sharedConf.getBoolean("useMediaStore", false);
+        shuffle=sharedConf.getBoolean("shuffle", false);
+        pixelFormat=sharedConf.getInt("pixelFormat", PIXEL_FORMAT_QUALITY);
+        // Rotation state of the previous run, see saveRotation()
+        savedIndex=sharedConf.getInt("currentIndex", 0);
+        savedScanConf=sharedConf.getString("currentScanConf", "");
+        lastChangeTime=sharedConf.getLong("lastChangeTime", 0);
+        shuffleSeed=sharedConf.getLong("shuffleSeed", 0);
+        if (shuffleSeed==0) shuffleSeed=new Random().nextLong();
+        prefetchEnabled=sharedConf.getBoolean("prefetchEnabled", true);
+        screenAwareScheduling=sharedConf.getBoolean("screenAwareScheduling", true);
+        useCropHints=sharedConf.getBoolean("useCropHints", false);
+    }
+
+    /**
+     * Image that cannot be decoded, recorded in the bad image list
+     */
+    private static final class DecodeFailureException extends IllegalStateException {
+        private static final long serialVersionUID=1L;
+
+        final String path;
+
+        DecodeFailureException(String path) {
+            super("Unable to decode " + path);
+            this.path = path;
+        }
+    }
+
+    /**
+     * Bitmaps ready to be applied for a lock screen and wallpaper pair
+     */
+    private static class RenderedFrame {
+        final String lockImage;
+        final String homeImage;
+        final int screenWidth;
+        final int screenHeight;
+        final int changeMode;
+        final int wpCenterMode;
+        final boolean cropHints;    // Bitmaps are scaled images to crop when applied, not composed frames
+        Bitmap lockBitmap;
+        Bitmap homeBitmap;
+        File lockFile;      // Cached lock screen frame, used instead of lockBitmap
+        File homeFile;      // Cached wallpaper frame, used instead of homeBitmap
+        String lockKey;     // Cache key of a new lockBitmap not stored yet
+        String homeKey;     // Cache key of a new homeBitmap not stored yet
+
+        RenderedFrame(String lockImage, String homeImage, int screenWidth, int screenHeight, int changeMode, int wpCenterMode, boolean cropHints) {
+            this.lockImage = lockImage;
+            this.homeImage = homeImage;
+            this.screenWidth = screenWidth;
+            this.screenHeight = screenHeight;
+            this.changeMode = changeMode;
+            this.wpCenterMode = wpCenterMode;
+            this.cropHints = cropHints;
+        }
+
+        /**
+         * Check if the frame was rendered for the given images and settings
+         */
+        boolean matches(String lockImage, String homeImage, int screenWidth, int screenHeight, int changeMode, int wpCenterMode, boolean cropHints) {
+            return this.lockImage.equals(lockImage) && this.homeImage.equals(homeImage)
+                    && this.screenWidth==screenWidth && this.screenHeight==screenHeight
+                    && this.changeMode==changeMode && this.wpCenterMode==wpCenterMode
+                    && this.cropHints==cropHints;
+        }
+
+        /**
+         * Give the frame bitmaps back to the pool
+         *
+         * @param pool Bitmap pool
+         */
+        void release(BitmapPool pool) {
+            pool.put(lockBitmap);
+            pool.put(homeBitmap);
+            lockBitmap = null;
+            homeBitmap = null;
+        }
     }
 
 }
@@ -0,0 +1,58 @@
+package com.softdav.zkmagicwp;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * MAGIC WALLPAPER CHANGER
+ * <p>
+ * Snapshot of the service state published to the bound clients
+ */
+public final class WallpaperState {
+    public static final String ACTION_UPDATE_UI="updateUI";     // State requested by a new client
+    public static final String ACTION_CHANGE_CONF="changeConf"; // Running configuration changed
+    public static final String ACTION_CHANGE_WP="changeWP";     // Wallpaper changed
+
+    @Nullable
+    public final String currentImage;
+    public final int intervalSeconds;
+    public final int changeMode;
+    public final int wpCenterMode;
+    @NonNull
+    public final String folderPath;
+    public final boolean recursiveScan;
+    public final boolean useMediaStore;
+    public final boolean shuffle;
+    public final int pixelFormat;
+    @NonNull
+    public final String imageExtensions;   // Comma separated extensions scanned in the folder
+    public final boolean prefetchEnabled;
+    public final boolean screenAwareScheduling;
+    public final boolean useCropHints;
+    @NonNull
+    public final String lastAction;
+    @NonNull
+    public final String metricsSummary;    // Pipeline timings, see PipelineMetrics.summary()
+
+    WallpaperState(@Nullable String currentImage, int intervalSeconds, int changeMode, int wpCenterMode,
+                   @NonNull String folderPath, boolean recursiveScan, boolean useMediaStore, boolean shuffle, int pixelFormat,
+                   @NonNull String imageExtensions, boolean prefetchEnabled, boolean screenAwareScheduling, boolean useCropHints,
+                   @NonNull String lastAction, @NonNull String metricsSummary) {
+        this.currentImage=currentImage;
+        this.intervalSeconds=intervalSeconds;
+        this.changeMode=changeMode;
+        this.wpCenterMode=wpCenterMode;
+        this.folderPath=folderPath;
+        this.recursiveScan=recursiveScan;
+        this.useMediaStore=useMediaStore;
+        this.shuffle=shuffle;
+        this.pixelFormat=pixelFormat;
+        this.imageExtensions=imageExtensions;
+        this.prefetchEnabled=prefetchEnabled;
+        this.screenAwareScheduling=screenAwareScheduling;
+        this.useCropHints=useCropHints;
+        this.lastAction=lastAction;
+        this.metricsSummary=metricsSummary;
+    }
+
+}